@@ -63,6 +63,7 @@ public class BroadcastQueue {
     private void internalRemove(PacketInfo packetInfo) {
         if(packetInfo.hasNoRef()) {
             manager.deleteOutgoingPacket(packetInfo.getPacket());
+            packetInfo.releaseEncodedFrames();
             
             // For GC
             packetInfo.setPacket(null);
@@ -215,6 +216,9 @@ public class BroadcastQueue {
             			it.remove();
             		}
             	}
+            	
+            	manager.deleteOutgoingPacket(packetInfo.getPacket());
+            	packetInfo.releaseEncodedFrames();
             }
         }
     }
@@ -223,6 +227,7 @@ public class BroadcastQueue {
     	//Delete all packets in the queue.
     	for (PacketInfo packetInfo : activeList) {
     		manager.deleteOutgoingPacket(packetInfo.getPacket());
+    		packetInfo.releaseEncodedFrames();
             
             // For GC
             packetInfo.setPacket(null);
@@ -15,10 +15,14 @@ import org.push.util.Utils;
  * Usually there are two kinds of event: read/write. In Java, the
  * write event is different from C++, the write event will be always be
  * triggered only when the socket is writable. So In Java version, 
- * the write event will not be monitored in the <code>IOQueue</code>.
- * So threads for handling write event will not work just be blocked
- * there. Just for consistency with the C++ version, keep the thread
- * for write event, these will be removed in the later version.
+ * the write event is only monitored by the <code>IOQueue</code> when
+ * the socket buffer is full and there is still data to send. So one
+ * thread for write event is started for each reactor, it will flush
+ * the pending data when the socket becomes writable.
+ * 
+ * Each worker thread is bound to one reactor of the <code>IOQueue</code>
+ * and only takes the events from the queue of this reactor, so the 
+ * workers of different reactors do not contend on the same queue.
  * 
  * @author Lei Wang
  */
@@ -42,12 +46,28 @@ public class Demultiplexor {
 	    stopWorking = false;
 		ServerOptions options = serverImpl.getServerOptions();
 
-	    int nThreads = options.getWorkersCount();
+	    int nReactors = serverImpl.getIOQueue().getReactorsCount();
+	    
+	    // At least one worker for each reactor
+	    int nThreads = Math.max(options.getWorkersCount(), nReactors);
 	    Thread thread;
 	    for (int i = 0; i < nThreads; i ++) {
+	    	final int reactorIndex = i % nReactors;
+	    	thread = new Thread(new Runnable() {
+				public void run() {
+					proc(reactorIndex);
+				}
+	    	});
+	    	thread.start();
+	        workersThreadsVect.add(thread);
+	    }
+	    
+	    // Threads for write event
+	    for (int i = 0; i < nReactors; i ++) {
+	    	final int reactorIndex = i;
 	    	thread = new Thread(new Runnable() {
 				public void run() {
-					proc();
+					proc(reactorIndex, false);
 				}
 	    	});
 	    	thread.start();
@@ -69,27 +89,36 @@ public class Demultiplexor {
 	    }
 	}
 	
-	private void proc() {
-		proc(true);
+	private void proc(int reactorIndex) {
+		proc(reactorIndex, true);
 	}
 	
-	private void proc(boolean processReadEvents) {
+	private void proc(int reactorIndex, boolean processReadEvents) {
 		IOQueue<PhysicalConnection> ioQueue = serverImpl.getIOQueue();
 		Dispatcher dispatcher = serverImpl.getDispatcher();
+		WorkerContext workerContext = new WorkerContext();
 
 	    IOEvent<PhysicalConnection> ioEvent;
 	    while (!stopWorking) {
-	    	ioEvent = ioQueue.getQueuedEvent(processReadEvents);
+	    	ioEvent = ioQueue.getQueuedEvent(reactorIndex, processReadEvents);
 
 	        if (ioEvent != null) {		        
 		        PhysicalConnection perSocketContext = ioEvent.context();
 
 	            if (ioEvent.type() == IOEventType.read) { // IN event
-	        		Debug.debug("In Event for: " + 
-	        				perSocketContext.getPeerIP());
-	                dispatcher.handleRead(perSocketContext, -1);
+	            	if (Debug.isEnabled()) {
+	            		Debug.debug("In Event for: " + 
+	            				perSocketContext.getPeerIP());
+	            	}
+	                dispatcher.handleRead(perSocketContext, -1, 
+	                		workerContext);
+	            } else { // OUT event
+	                dispatcher.handleWrite(perSocketContext, -1, 
+	                		workerContext);
 	            }
 	        }
 	    }
+	    
+	    workerContext.release();
 	}
 }
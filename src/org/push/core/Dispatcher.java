@@ -36,8 +36,7 @@ public class Dispatcher {
 	private Map<Integer, Service> serviceMap = new HashMap<Integer, Service>();
 
 	//Reference to dispatched services :
-	private Map<Long, String> workerServiceMap = new HashMap<Long, String>();
-	private Object csSrvMap;
+	private ThreadLocal<String> currentService = new ThreadLocal<String>();
 	
 	// 
 	private ServerImpl serverImpl;
@@ -45,8 +44,6 @@ public class Dispatcher {
 	public Dispatcher(ServerImpl serverImpl) {
 		Utils.nullArgCheck(serverImpl, "serverImpl");
 		this.serverImpl = serverImpl;
-		
-		this.csSrvMap = new Object();
 	}
 	
 	/**
@@ -75,6 +72,25 @@ public class Dispatcher {
 	 * @param dwIoSize   reserved, usually -1 is given
 	 */
 	public void handleRead(PhysicalConnection connection, int dwIoSize) {
+		WorkerContext workerContext = new WorkerContext();
+		handleRead(connection, dwIoSize, workerContext);
+		workerContext.release();
+	}
+
+	/**
+	 * Handle the read event. (When there is data from the client)
+	 * 
+	 * All the complete messages received are dispatched, up to
+	 * {@link ServerOptions#getMaxMessagesPerRead()}. If the limit is
+	 * reached, another read event is queued for the rest instead of
+	 * waiting for the socket to be readable again.
+	 * 
+	 * @param connection
+	 * @param dwIoSize   reserved, usually -1 is given
+	 * @param workerContext  the scratch objects of current worker
+	 */
+	public void handleRead(PhysicalConnection connection, int dwIoSize, 
+			WorkerContext workerContext) {
 		ClientFactory clientFactoryImpl = serverImpl.getClientFactory();
 		ProtocolManager theProtocolManager = serverImpl.getProtocolManager();
 		
@@ -82,9 +98,14 @@ public class Dispatcher {
 
 		boolean isFailed = false;
 		boolean waitForPendingPackets = false;
+		
+		int nMaxMessages = 
+			serverImpl.getServerOptions().getMaxMessagesPerRead();
+		int nMessages;
+		boolean hasPendingMessages;
 
-		RecyclableBuffer incomingBytes = new RecyclableBuffer(
-				RecyclableBuffer.Type.UnAllocated);
+		RecyclableBuffer incomingBytes = workerContext.getIncomingBytes();
+		incomingBytes.clearBytes();
 		isFailed = !connection.readReceivedBytes(incomingBytes, dwIoSize);
 
 		if (!isFailed) {
@@ -92,60 +113,102 @@ public class Dispatcher {
 					incomingBytes);
 		}
 
-		//The Processing Loop.
-		DeserializeData deserializeData = new DeserializeData(
-				connection.getProtocol().getLowestProtocol());
+		DeserializeData deserializeData = workerContext.getDeserializeData();
+		Protocol lowestProtocol = connection.getProtocol().getLowestProtocol();
 		NetworkDeserializeResult result;
 		while (!isFailed) {
-			deserializeData.clear();
-			result = theProtocolManager.tryDeserializeIncomingPacket(
-					connection, deserializeData);
-			
-			if (result == NetworkDeserializeResult.ProtocolBytes) {	
-				if (deserializeData.getProtocolBytes().hasBytes()) {
-					connection.pushBytes(deserializeData.getProtocolBytes(), 
-							deserializeData.getProtocol().getLowerProtocol());
+			nMessages = 0;
+			hasPendingMessages = false;
+
+			//The Processing Loop.
+			while (!isFailed) {
+				// Each message is decoded from the lowest layer
+				deserializeData.setProtocol(lowestProtocol);
+				deserializeData.clear();
+				result = theProtocolManager.tryDeserializeIncomingPacket(
+						connection, deserializeData, 
+						workerContext.getDecodeBuffer());
+				
+				if (result == NetworkDeserializeResult.ProtocolBytes) {	
+					if (deserializeData.getProtocolBytes().hasBytes()) {
+						connection.pushBytes(
+								deserializeData.getProtocolBytes(), 
+								deserializeData.getProtocol().getLowerProtocol());
+					}
+	
+					continue;
 				}
-
-				continue;
-			}
-			else if (result == NetworkDeserializeResult.Close)
-			{
-				if (deserializeData.getProtocolBytes().hasBytes()) {
-					connection.pushBytes(deserializeData.getProtocolBytes(), 
-							deserializeData.getProtocol().getLowerProtocol());
+				else if (result == NetworkDeserializeResult.Close)
+				{
+					if (deserializeData.getProtocolBytes().hasBytes()) {
+						connection.pushBytes(
+								deserializeData.getProtocolBytes(), 
+								deserializeData.getProtocol().getLowerProtocol());
+					}
+	
+					isFailed = true;
+					waitForPendingPackets = true;
 				}
-
-				isFailed = true;
-				waitForPendingPackets = true;
+				else if (result == NetworkDeserializeResult.Content)
+				{
+					handleRequest(connection, deserializeData.getMessage(), 
+							deserializeData.getRoutingService(), 0, 
+							workerContext);
+					connection.getMessageFactory().disposeIncomingPacket(
+							deserializeData.getMessage());
+					
+					// The request may close the connection
+					if (connection.getStatus().value() < 
+							PhysicalConnection.Status.Connected.value()) {
+						break;
+					}
+	
+					nMessages ++;
+					if (nMaxMessages != 0 && nMessages >= nMaxMessages) {
+						hasPendingMessages = true;
+						break;
+					}
+				}
+				else if(result == NetworkDeserializeResult.WantMoreData) {
+					break;
+				} else {
+					/*result == NetworkDeserializeResult::Failure or 
+					NetworkDeserializeResult::Initializationfailure*/
+					isFailed = true;
+				}		
+			}
+			
+			// Check if the socket is closed
+			if (!isFailed) {
+				isFailed = !connection.getSocket().isConnected();
 			}
-			else if (result == NetworkDeserializeResult.Content)
-			{
-				handleRequest(connection, deserializeData.getMessage(), 
-						deserializeData.getRoutingService(), 0);
-				connection.getMessageFactory().disposeIncomingPacket(
-						deserializeData.getMessage());
+			
+			if (isFailed) {
 				break;
 			}
-			else if(result == NetworkDeserializeResult.WantMoreData) {
-				connection.postReceive();
+
+			connection.checkConnectionInitialization();
+			if (!hasPendingMessages) {
+				// Nothing left to decode, give back the empty buffers 
+				// before another worker could read the connection
+				connection.releaseIdleBuffers();
+
+				// A protocol waiting for a task resumes the read itself
+				if (!connection.suspendRead()) {
+					connection.postReceive();
+				}
 				break;
-			} else {
-				/*result == NetworkDeserializeResult::Failure or 
-				NetworkDeserializeResult::Initializationfailure*/
-				isFailed = true;
-			}		
-		}
-		
-		// Check if the socket is closed
-		if (!isFailed) {
-			isFailed = !connection.getSocket().isConnected();
+			}
+
+			// Let the other connections go first
+			if (connection.postPendingRead()) {
+				break;
+			}
+			// The event queue is full, go on with the rest in this
+			// event rather than leave them until the next bytes arrive
 		}
 
-		if (!isFailed) {
-			connection.checkConnectionInitialization();
-			connection.postReceive();
-		} else {
+		if (isFailed) {
 			if (status == PhysicalConnection.Status.Attached) {
 				clientFactoryImpl.disconnect(
 						connection.getLogicalConnectionImpl(), 
@@ -157,9 +220,6 @@ public class Dispatcher {
 		}
 
 		connection.decrementIoWorkersReferenceCounter();
-		
-		deserializeData.release();		
-		incomingBytes.release();
 	}
 	
 	/**
@@ -169,11 +229,26 @@ public class Dispatcher {
 	 * @param dwIoSize   reserved, usually -1 is given
 	 */
 	public void handleWrite(PhysicalConnection connection, int dwIoSize) {
+		WorkerContext workerContext = new WorkerContext();
+		handleWrite(connection, dwIoSize, workerContext);
+		workerContext.release();
+	}
+
+	/**
+	 * Handle the write event (when there is data to send to the client)
+	 * 
+	 * @param connection
+	 * @param dwIoSize   reserved, usually -1 is given
+	 * @param workerContext  the scratch objects of current worker
+	 */
+	public void handleWrite(PhysicalConnection connection, int dwIoSize, 
+			WorkerContext workerContext) {
 		ClientFactory clientFactoryImpl = serverImpl.getClientFactory();
 
 		boolean bIsBufferIdle = false;
 		PhysicalConnection.Status status = connection.getStatus();
-		Ptr<Boolean> pIsBufferIdle = new Ptr<Boolean>(Boolean.FALSE);
+		Ptr<Boolean> pIsBufferIdle = workerContext.getIsBufferIdle();
+		pIsBufferIdle.set(Boolean.FALSE);
 		if (!connection.onSendCompleted(pIsBufferIdle)) {
 			if (status == PhysicalConnection.Status.Attached) {
 				clientFactoryImpl.disconnect(
@@ -199,7 +274,7 @@ public class Dispatcher {
 
 			if (!connection.isObserverChannel()) {
 				connection.getLogicalConnectionImpl().onReadyForSend(
-						connection.getSendBuffer().getRemainingSize());
+						connection.getSendQueueRemainingSize());
 			}
 		}
 
@@ -246,30 +321,21 @@ public class Dispatcher {
 	 * @param serviceName name of the service
 	 */
 	public void setCurrentService(String serviceName) {
-	    synchronized(csSrvMap) {
-	    	Long dwThread = new Long(Thread.currentThread().getId());
-		    workerServiceMap.put(dwThread, serviceName);
-	    }
+		currentService.set(serviceName);
 	}
 	
 	/**
 	 * Remove the service of current thread
 	 */
 	public void unsetCurrentService() {
-	    synchronized(csSrvMap) {
-	    	Long dwThread = new Long(Thread.currentThread().getId());
-		    workerServiceMap.remove(dwThread);
-	    }
+		currentService.set(null);
 	}
 
 	/**
 	 * Get the service of current thread
 	 */
 	public String getCurrentService() {
-	    synchronized(csSrvMap) {
-	    	Long dwThread = new Long(Thread.currentThread().getId());
-		    return workerServiceMap.get(dwThread);
-	    }
+		return currentService.get();
 	}
 
 	/**
@@ -330,13 +396,14 @@ public class Dispatcher {
 
 
 	private void handleRequest(PhysicalConnection connection, 
-			IncomingPacket packet, int nRoutingService, int serviceBytes) {
+			IncomingPacket packet, int nRoutingService, int serviceBytes, 
+			WorkerContext workerContext) {
 		Utils.unsignedIntArgCheck(serviceBytes, "serviceBytes");
 
 		if (connection.getStatus() == PhysicalConnection.Status.Connected) {
 			if (!connection.isObserverChannel()) {
 				processFirstRequest(connection, packet, nRoutingService, 
-						serviceBytes);
+						serviceBytes, workerContext);
 			} else {
 				processMonitorFirstRequest(connection, packet);
 			}
@@ -344,11 +411,13 @@ public class Dispatcher {
 			return;
 		}
 
-		dispatchRequest(connection, packet, nRoutingService, serviceBytes);
+		dispatchRequest(connection, packet, nRoutingService, serviceBytes, 
+				workerContext);
 	}
 
 	private void dispatchRequest(PhysicalConnection connection, 
-			IncomingPacket packet, int nRoutingService, int serviceBytes ) {
+			IncomingPacket packet, int nRoutingService, int serviceBytes, 
+			WorkerContext workerContext) {
 		Utils.unsignedIntArgCheck(serviceBytes, "serviceBytes");
 		ServerStats stats = serverImpl.getServerStats();
 
@@ -364,7 +433,7 @@ public class Dispatcher {
 		LogicalConnectionImpl client = connection.getLogicalConnectionImpl();
 
 		//
-		Service service = serviceMap.get(new Integer(nRoutingService));
+		Service service = serviceMap.get(Integer.valueOf(nRoutingService));
 		if (service == null) {
 			client.getFacade().handleRequest(packet);
 			return;
@@ -373,7 +442,8 @@ public class Dispatcher {
 
 		setCurrentService(service.getName());
 
-		StopWatch watch = new StopWatch();
+		StopWatch watch = workerContext.getStopWatch();
+		watch.restart();
 		service.handle(client.getFacade(), packet);
 
 		double duration = watch.getElapsedTime();
@@ -397,7 +467,8 @@ public class Dispatcher {
 	}
 
 	private void processFirstRequest(PhysicalConnection connection, 
-			IncomingPacket packet, int nRoutingService, int serviceBytes) {
+			IncomingPacket packet, int nRoutingService, int serviceBytes, 
+			WorkerContext workerContext) {
 		Utils.unsignedIntArgCheck(serviceBytes, "serviceBytes");
 	    //OutgoingPacket pOutPacket = null;
 		LogicalConnectionPool logicalConnectionPool = 
@@ -447,7 +518,7 @@ public class Dispatcher {
 
 		if (type == Login.AcceptClientAndRouteRequest) {
 			dispatchRequest(connection, loginData.getRequest(), 
-					nRoutingService, serviceBytes);
+					nRoutingService, serviceBytes, workerContext);
 		}
 		
 		//Statistics :
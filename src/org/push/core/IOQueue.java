@@ -12,8 +12,24 @@ public interface IOQueue<T> {
 
 	public void free();
 
+	/**
+	 * How many reactors are polling the I/O events. Each reactor has
+	 * its own event queue.
+	 * @return  count of reactors
+	 */
+	public int getReactorsCount();
+
 	public IOEvent<T> getQueuedEvent(boolean isInputEvents);
 
+	/**
+	 * Get the event from the queue of the given reactor.
+	 * @param reactorIndex   index of the reactor, from 0 to 
+	 *                       {@link #getReactorsCount()} - 1
+	 * @param isInputEvents  true for read event
+	 * @return  the event or null if no event in time
+	 */
+	public IOEvent<T> getQueuedEvent(int reactorIndex, boolean isInputEvents);
+
 	public boolean addSocketContext(PushClientSocket socket, T context);
 
 	public void deleteSocketContext(PushClientSocket socket);
@@ -21,4 +37,14 @@ public interface IOQueue<T> {
 	public boolean rearmSocketForWrite(PushClientSocket socket, T context);
 
 	public boolean rearmSocketForRead(PushClientSocket socket, T context);
+
+	/**
+	 * Queue a read event for the socket without waiting for it to be
+	 * readable, it is used when there is still received data to process.
+	 * The socket must not be armed for read at the same time.
+	 * @param socket   the socket
+	 * @param context  the context of the socket
+	 * @return  true if the event is queued
+	 */
+	public boolean postReadEvent(PushClientSocket socket, T context);
 }
@@ -1,52 +1,118 @@
 package org.push.core;
 
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.LinkedList;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.push.core.IOEvent.IOEventType;
+import org.push.util.Utils;
 
 /**
  * A implementation by Java NIO to manage socket I/O event.
  * In Java, the write event is something different, and it
  * will be triggered all the times when the socket buffer
  * is available so it will occupy the CPU all the times, so
- * write event will not monitored.
+ * write event is only monitored after {@link #rearmSocketForWrite}
+ * is called (when the socket buffer is full), and it is dropped
+ * again once it is selected.
+ * 
+ * There could be several reactors, each reactor has its own
+ * selector, polling thread and event queue. The sockets are
+ * assigned to the reactors by round-robin when they are added,
+ * so selecting and queuing the events are scaled with the count
+ * of the reactors instead of serializing on one thread.
+ * 
+ * Each socket keeps one <code>SelectionKey</code> for its whole life. 
+ * When the key is selected, its ready operations are removed from the
+ * interest set until the event is processed, and re-arming only adds
+ * the operations back. The re-arming requests are put into a lock-free
+ * queue of the reactor and applied by the polling thread in batch, and
+ * the selector is woken up at most once for a batch.
+ * 
+ * Dropping the ready operations from the interest set makes each 
+ * readiness reported only once until it is re-armed, this is the
+ * same semantics of the edge-triggered epoll (EPOLLONESHOT) on top of
+ * the level-triggered selectors, so the workers do not need to drain 
+ * the socket to EAGAIN in one event.
  * 
  * @author Lei Wang
  */
 
 public class IOQueueImpl implements IOQueue<PhysicalConnection> {
+	
+	private static final int pollsize = 1024;
+
+	private ServerOptions options;
 
-	private Selector inPollSelector;
+	private Reactor[] reactors;
 	
-	private Thread inPollThread;
+	private AtomicInteger nextReactor = new AtomicInteger(0);
 	
 	private volatile boolean isPolling;
 	
-	private BlockingQueue<SelectionKey> inPollQueue;
-	
 	private ConcurrentMap<PushClientSocket, SelectionKeyGroup> socketMap
 		= new ConcurrentHashMap<PushClientSocket, SelectionKeyGroup>();
 	
+	/**
+	 * A reactor owns a selector and the thread polling it. The events
+	 * selected are put into its own queues.
+	 */
+	private static class Reactor {
+		private Selector selector;
+		private Thread thread;
+		private BlockingQueue<IOEvent<PhysicalConnection>> inQueue;
+		private BlockingQueue<IOEvent<PhysicalConnection>> outQueue;
+		
+		// Keys waiting for their interest operations to be updated
+		private ConcurrentLinkedQueue<SelectionKeyGroup> pendingQueue = 
+			new ConcurrentLinkedQueue<SelectionKeyGroup>();
+		
+		// If the selector has been woken up since the last select
+		private AtomicBoolean wakenUp = new AtomicBoolean(false);
+	}
+	
 	private static class SelectionKeyGroup {
-		private SelectionKey readKey;
-		private SelectionKey writeKey;
+		private Reactor reactor;
+		private SelectionKey key;
+		
+		// Interest operations to add by the polling thread
+		private AtomicInteger pendingOps = new AtomicInteger(0);
+		
+		// The events are reused since the same event will not be 
+		// queued twice before it is processed.
+		private IOEvent<PhysicalConnection> readEvent;
+		private IOEvent<PhysicalConnection> writeEvent;
 		
-		SelectionKeyGroup(SelectionKey readKey, SelectionKey writeKey) {
-			this.readKey = readKey;
-			this.writeKey = writeKey;
+		SelectionKeyGroup(Reactor reactor, SelectionKey key, 
+				PhysicalConnection context) {
+			this.reactor = reactor;
+			this.key = key;
+			this.readEvent = new IOEvent<PhysicalConnection>(
+					IOEventType.read, context);
+			this.writeEvent = new IOEvent<PhysicalConnection>(
+					IOEventType.write, context);
 		}
 		
-		SelectionKey getReadKey() { return this.readKey; }
-		SelectionKey getWriteKey() { return this.writeKey; }
+		Reactor getReactor() { return this.reactor; }
+		SelectionKey getKey() { return this.key; }
+	}
+	
+	public IOQueueImpl(ServerOptions options) {
+		Utils.nullArgCheck(options, "options");
+		this.options = options;
 	}
 	
 	private static void closeSelector(Selector selector) {
@@ -62,97 +128,134 @@ public class IOQueueImpl implements IOQueue<PhysicalConnection> {
 	}
 
 	public boolean create() {
-		int pollsize = 1024;
+		int nReactors = options.getReactorsCount();
 		
+		// The selectors must be from the same provider as the sockets
+		SelectorProvider provider;
 		try {
-			inPollSelector = Selector.open();
+			provider = SocketFactory.getDefault().getSelectorProvider(
+					options.getSocketType());
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
 		
-		inPollQueue = new LinkedBlockingQueue<SelectionKey>(pollsize);
+		reactors = new Reactor[nReactors];
+		for (int i = 0; i < nReactors; i ++) {
+			reactors[i] = new Reactor();
+			try {
+				reactors[i].selector = provider.openSelector();
+			} catch (IOException e) {
+				e.printStackTrace();
+				for (int j = 0; j < i; j ++) {
+					closeSelector(reactors[j].selector);
+				}
+				reactors = null;
+				return false;
+			}
+			
+			reactors[i].inQueue = 
+				new LinkedBlockingQueue<IOEvent<PhysicalConnection>>(pollsize);
+			reactors[i].outQueue = 
+				new LinkedBlockingQueue<IOEvent<PhysicalConnection>>(pollsize);
+		}
 		
 		isPolling = true;
-		final IOQueueImpl me = this;
-		inPollThread = new Thread(new Runnable() {
-			public void run() {
-				me.pollEvents(false);
-			}
-		});
-		inPollThread.start();
+		for (final Reactor reactor : reactors) {
+			reactor.thread = new Thread(new Runnable() {
+				public void run() {
+					pollEvents(reactor);
+				}
+			});
+			reactor.thread.start();
+		}
 		
 		return true;
 	}
 
 	public void free() {
 		isPolling = false;
-
-		closeSelector(inPollSelector);
-		inPollSelector = null;
 		
-		// Clear the event queue first
-		// will awake the thread if it blocks because the queue is full.
-		inPollQueue.clear();
+		if (reactors == null) {
+			return;
+		}
 
-		try {
-			inPollThread.join();
-		} catch (InterruptedException e) {
-			// Ignore
+		for (Reactor reactor : reactors) {
+			closeSelector(reactor.selector);
+			reactor.selector = null;
+			
+			// Clear the event queue first
+			// will awake the thread if it blocks because the queue is full.
+			reactor.inQueue.clear();
+			reactor.outQueue.clear();
+		}
+
+		for (Reactor reactor : reactors) {
+			try {
+				reactor.thread.join();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
 		}
 		
 		// Clear registered sockets
 		socketMap.clear();
 	}
 
+	public int getReactorsCount() {
+		return reactors != null ? reactors.length : 
+			options.getReactorsCount();
+	}
+
 	public IOEvent<PhysicalConnection> getQueuedEvent(boolean isInputEvents) {
-		final IOEventType type;
-		final BlockingQueue<SelectionKey> pollQueue;
-		
-		if (isInputEvents) {
-			type = IOEventType.read;
-			pollQueue = inPollQueue;
-		} else {
-			type = null;
-			pollQueue = null;
-		}
-		
-		if (pollQueue == null) {
-			return null;
-		}
+		return getQueuedEvent(0, isInputEvents);
+	}
+
+	public IOEvent<PhysicalConnection> getQueuedEvent(int reactorIndex, 
+			boolean isInputEvents) {
+		Reactor reactor = reactors[reactorIndex];
+		BlockingQueue<IOEvent<PhysicalConnection>> pollQueue = 
+			isInputEvents ? reactor.inQueue : reactor.outQueue;
 
 		try {
-			SelectionKey key = pollQueue.poll(1000L, TimeUnit.MILLISECONDS);
-			if (key != null) {
-				if (key.attachment() instanceof PhysicalConnection) {
-					return new IOEvent<PhysicalConnection>(type, 
-							(PhysicalConnection)(key.attachment()));
-				}
-			}
+			return pollQueue.poll(1000L, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			// Ignore
 		}
 		
 		return null;
 	}
+	
+	/**
+	 * Choose the reactor for a new socket by round-robin
+	 */
+	private Reactor nextReactor() {
+		int index = (nextReactor.getAndIncrement() & Integer.MAX_VALUE) % 
+			reactors.length;
+		return reactors[index];
+	}
 
 	public boolean addSocketContext(PushClientSocket socket,
-			PhysicalConnection context) {		
-		// Register the events to listen
-		SelectionKey readKey = null;
-		SelectionKey writeKey = null;
+			PhysicalConnection context) {
+		Reactor reactor = nextReactor();
+
+		// Register without any interest so the key could not be selected
+		// before the group is attached
+		SelectionKey key = null;
 		try {
-			readKey = socket.registerSelector(inPollSelector, 
-					SelectionKey.OP_READ, context);
-			System.out.println("Register socket for read");
-//			writeKey = socket.registerSelector(outPollSelector, 
-//					SelectionKey.OP_WRITE, context);
+			key = socket.registerSelector(reactor.selector, 0, null);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
 		
-		socketMap.put(socket, new SelectionKeyGroup(readKey, writeKey));
+		SelectionKeyGroup keyGroup = 
+			new SelectionKeyGroup(reactor, key, context);
+		key.attach(keyGroup);
+		socketMap.put(socket, keyGroup);
+
+		// Then listen to the read event by the polling thread
+		addInterestOps(keyGroup, SelectionKey.OP_READ);
 
 		return true;
 	}
@@ -160,49 +263,113 @@ public class IOQueueImpl implements IOQueue<PhysicalConnection> {
 	public void deleteSocketContext(PushClientSocket socket) {
 		SelectionKeyGroup keyGroup = socketMap.remove(socket);
 		if (keyGroup != null) {
-			SelectionKey readKey = keyGroup.getReadKey();
-			SelectionKey writeKey = keyGroup.getWriteKey();
-			if (readKey != null) {
-				// Cancel monitoring read event 
-				readKey.cancel();
-			}
-			
-			if (writeKey != null) {
-				// Cancel monitoring write event 
-				writeKey.cancel();
-			}
+			// Cancel monitoring the events
+			keyGroup.getKey().cancel();
 		}
 	}
 	
-	private void pollEvents(boolean isOutPoll) {
-		Selector selector;
-		BlockingQueue<SelectionKey> queue;
-		if (isOutPoll) {
+	/**
+	 * Ask the polling thread of the reactor to add the operations 
+	 * into the interest set of the key.
+	 */
+	private void addInterestOps(SelectionKeyGroup keyGroup, int ops) {
+		int prev;
+		do {
+			prev = keyGroup.pendingOps.get();
+		} while (!keyGroup.pendingOps.compareAndSet(prev, prev | ops));
+		
+		// Already in the pending queue
+		if (prev != 0) {
 			return;
-		} else {
-			selector = this.inPollSelector;
-			queue = this.inPollQueue;
 		}
 		
-		List<SelectionKey> cache = new LinkedList<SelectionKey>();
+		Reactor reactor = keyGroup.getReactor();
+		reactor.pendingQueue.add(keyGroup);
+		
+		// Only the first request after the last select wakes up the selector
+		if (reactor.wakenUp.compareAndSet(false, true)) {
+			reactor.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Apply all the pending interest operations, must be called
+	 * by the polling thread of the reactor.
+	 */
+	private void applyPendingOps(Reactor reactor) {
+		SelectionKeyGroup keyGroup;
+		while ((keyGroup = reactor.pendingQueue.poll()) != null) {
+			int ops = keyGroup.pendingOps.getAndSet(0);
+			SelectionKey key = keyGroup.getKey();
+			try {
+				if (key.isValid()) {
+					key.interestOps(key.interestOps() | ops);
+				}
+			} catch (CancelledKeyException e) {
+				// The socket is closed
+			}
+		}
+	}
+	
+	/**
+	 * Move the events from the cache to the queue, it will block if the 
+	 * queue is full until the workers take the events or the queue is
+	 * cleared by {@link #free()}.
+	 */
+	private static void moveToQueue(List<IOEvent<PhysicalConnection>> cache, 
+			BlockingQueue<IOEvent<PhysicalConnection>> queue) {
+		try {
+			for (IOEvent<PhysicalConnection> event : cache) {
+				queue.put(event);
+			}
+		} catch (InterruptedException e) {
+			// Ignore
+		}
+		cache.clear();
+	}
+	
+	private void pollEvents(Reactor reactor) {
+		Selector selector = reactor.selector;
+		
+		List<IOEvent<PhysicalConnection>> inCache = 
+			new ArrayList<IOEvent<PhysicalConnection>>();
+		List<IOEvent<PhysicalConnection>> outCache = 
+			new ArrayList<IOEvent<PhysicalConnection>>();
 
+		SelectionKeyGroup keyGroup;
+		int readyOps;
 		while (isPolling) {
+			reactor.wakenUp.set(false);
+			applyPendingOps(reactor);
+
 			try {
 				selector.select();
 			} catch (IOException e) {
 				continue;
+			} catch (ClosedSelectorException e) {
+				break; // selector closed
 			}
 			
-			// yield for register
-			Thread.yield();
-			
 			// Add into cache (Add into the blocking queue directly
 			// may block so that the selector cannot release the selection 
 			// key in time)
 			if (selector.isOpen()) {
 				for (SelectionKey key : selector.selectedKeys()) {
-					key.cancel(); // cancel the key until it is processed
-					cache.add(key);
+					try {
+						// Stop monitoring until the event is processed
+						readyOps = key.readyOps();
+						key.interestOps(key.interestOps() & ~readyOps);
+					} catch (CancelledKeyException e) {
+						continue; // The socket is closed
+					}
+
+					keyGroup = (SelectionKeyGroup) key.attachment();
+					if ((readyOps & SelectionKey.OP_READ) != 0) {
+						inCache.add(keyGroup.readEvent);
+					}
+					if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+						outCache.add(keyGroup.writeEvent);
+					}
 				}
 				
 				// Clear the keys
@@ -211,8 +378,8 @@ public class IOQueueImpl implements IOQueue<PhysicalConnection> {
 				// Move from cache to queue (May block if the queue is full)
 				// The free() method will call clear() first to awake the 
 				// thread first and join the thread
-				queue.addAll(cache);
-				cache.clear();
+				moveToQueue(outCache, reactor.outQueue);
+				moveToQueue(inCache, reactor.inQueue);
 			} else {
 				break; // selector closed
 			}
@@ -221,26 +388,35 @@ public class IOQueueImpl implements IOQueue<PhysicalConnection> {
 
 	public boolean rearmSocketForWrite(PushClientSocket socket,
 			PhysicalConnection context) {
-		return false;
+		SelectionKeyGroup keyGroup = socketMap.get(socket);
+		if (keyGroup == null) {
+			return false;
+		}
+
+		addInterestOps(keyGroup, SelectionKey.OP_WRITE);
+		return true;
 	}
 
 	public boolean rearmSocketForRead(PushClientSocket socket,
 			PhysicalConnection context) {
-		SelectionKey readKey = null;
-		try {
-			readKey = socket.registerSelector(inPollSelector, 
-					SelectionKey.OP_READ, context);
-		} catch (IOException e) {
-			e.printStackTrace();
+		SelectionKeyGroup keyGroup = socketMap.get(socket);
+		if (keyGroup == null) {
 			return false;
 		}
-		
+
+		addInterestOps(keyGroup, SelectionKey.OP_READ);
+		return true;
+	}
+
+	public boolean postReadEvent(PushClientSocket socket,
+			PhysicalConnection context) {
 		SelectionKeyGroup keyGroup = socketMap.get(socket);
-		if (keyGroup != null) {
-			keyGroup.readKey = readKey;
-			return true;
+		if (keyGroup == null) {
+			return false;
 		}
 
-		return false;
+		// Never block the worker, the caller processes the data itself
+		// if the queue is full
+		return keyGroup.getReactor().inQueue.offer(keyGroup.readEvent);
 	}
 }
@@ -119,7 +119,6 @@ public class LogicalConnectionImpl {
 
 		BroadcastQueueGroupContext group = rootQueueGroupContext;
 		PacketInfo packetInfo;
-		OutgoingPacket outgoingPacket;
 		while (group != null) {
 			packetInfo = group.getNextPacket();
 			if (packetInfo == null) {
@@ -128,9 +127,7 @@ public class LogicalConnectionImpl {
 			}
 
 			isPacketFound = true;
-			outgoingPacket = packetInfo.getPacket();
-
-			SendResult result = pushPacket(outgoingPacket);
+			SendResult result = pushBroadcastPacket(packetInfo);
 
 			boolean isSent = (result == SendResult.OK);
 
@@ -168,6 +165,22 @@ public class LogicalConnectionImpl {
 
 	public LogicalConnection getFacade() { return this.facade; }
 
+	/**
+	 * Push a packet of the broadcast queue.
+	 * @see PhysicalConnection#pushBroadcastPacket(PacketInfo)
+	 * 
+	 * @param packetInfo  the packet
+	 * @return  the result
+	 */
+	public SendResult pushBroadcastPacket(PacketInfo packetInfo) {
+		SendResult result = physicalConnection.pushBroadcastPacket(packetInfo);
+		if (result == SendResult.NotOK) {
+			serverImpl.getClientFactory().disconnect(this, false, 
+					DisconnectionReason.PeerClosure);
+		}
+		return result;
+	}
+
 	public SendResult pushPacket(OutgoingPacket packet) {
 		SendResult result = physicalConnection.pushPacket(packet);
 		if (result == SendResult.NotOK) {
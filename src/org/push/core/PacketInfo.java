@@ -1,6 +1,16 @@
 package org.push.core;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.push.protocol.Connection;
 import org.push.protocol.OutgoingPacket;
+import org.push.protocol.Protocol;
+import org.push.protocol.ProtocolManager;
+import org.push.protocol.RecyclableBuffer;
+import org.push.protocol.SerializeData;
+import org.push.protocol.SharedBuffer;
+import org.push.protocol.ErrorCodes.NetworkSerializeResult;
 import org.push.util.Utils;
 
 
@@ -33,6 +43,9 @@ public class PacketInfo {
 	private long creationTime;
 
 	private PacketInfo next;
+	
+	// The packet encoded by each protocol stack, shared by connections
+	private Map<Protocol, SharedBuffer> encodedFrames;
     
     public PacketInfo(OutgoingPacket packet, String killKey, int objectCategory, int packetId) {
     	this.packetId = packetId;
@@ -93,6 +106,55 @@ public class PacketInfo {
 		this.blnWaitingForRemoval = blnWaitingForRemoval;
 	}
 	
+	/**
+	 * Get the packet encoded by the given protocol stack. The packet is
+	 * encoded only once for all the connections using the same stack, 
+	 * so the stack must be shareable. 
+	 * @see Protocol#isStackEncodingShareable()
+	 * 
+	 * @param connection  the connection which needs the encoded bytes
+	 * @param protocol    the top protocol of the stack, could be null
+	 * @param protocolManager  to encode the packet
+	 * @return  the encoded bytes, or null if failed to encode
+	 */
+	public synchronized SharedBuffer getEncodedFrame(Connection connection, 
+			Protocol protocol, ProtocolManager protocolManager) {
+		if (encodedFrames == null) {
+			encodedFrames = new HashMap<Protocol, SharedBuffer>(2);
+		}
+		
+		SharedBuffer frame = encodedFrames.get(protocol);
+		if (frame == null) {
+			frame = new SharedBuffer(RecyclableBuffer.Type.Single);
+			NetworkSerializeResult result = 
+				protocolManager.serializeOutgoingPacket(connection, packet, 
+						frame, new SerializeData(protocol));
+			if (result != NetworkSerializeResult.Success) {
+				frame.release();
+				return null;
+			}
+
+			encodedFrames.put(protocol, frame);
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Release the encoded bytes, the connections which still queue 
+	 * them hold their own references.
+	 */
+	public synchronized void releaseEncodedFrames() {
+		if (encodedFrames == null) {
+			return;
+		}
+		
+		for (SharedBuffer frame : encodedFrames.values()) {
+			frame.release();
+		}
+		encodedFrames = null;
+	}
+	
 	public PacketInfo next() { return next; };
 	
 	public void setNext(PacketInfo next) {
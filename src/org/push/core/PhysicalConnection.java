@@ -1,10 +1,13 @@
 package org.push.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.push.core.Common.DisconnectionReason;
 import org.push.core.Common.SendResult;
 import org.push.monitor.MonitorsMsgFactory;
 import org.push.protocol.Buffer;
@@ -16,6 +19,7 @@ import org.push.protocol.Protocol;
 import org.push.protocol.ProtocolManager;
 import org.push.protocol.RecyclableBuffer;
 import org.push.protocol.SerializeData;
+import org.push.protocol.SharedBuffer;
 import org.push.util.CppEnum;
 import org.push.util.Debug;
 import org.push.util.Ptr;
@@ -28,6 +32,9 @@ import org.push.util.Utils;
  */
 
 public class PhysicalConnection extends Connection {
+	
+	/* Maximum buffers sent by one gathering write */
+	private static final int MAX_GATHERED_BUFFERS = 64;
 
 	public enum Status implements CppEnum {
         Disposable(0),
@@ -49,7 +56,13 @@ public class PhysicalConnection extends Connection {
     private long dtLastReceiveTime;
     private Lock csLock;
     private LogicalConnectionImpl logicalConnection;
-    private RecyclableBuffer oBuffer;
+    
+    // Encoded packets waiting to be sent and their views for the socket
+    private ArrayDeque<Buffer> sendQueue;
+    private ArrayDeque<ByteBuffer> sendViews;
+    private ByteBuffer[] gatheredViews;
+    private int nPendingBytes;
+    private int nMaxPendingBytes;
     private volatile boolean bWriteInProgress;
 
     private PushClientSocket socket;
@@ -63,7 +76,9 @@ public class PhysicalConnection extends Connection {
     private ServerImpl serverImpl;
 
 	public PhysicalConnection(ServerImpl serverImpl) {
-		oBuffer = new RecyclableBuffer(RecyclableBuffer.Type.Multiple);
+		sendQueue = new ArrayDeque<Buffer>();
+		sendViews = new ArrayDeque<ByteBuffer>();
+		gatheredViews = new ByteBuffer[MAX_GATHERED_BUFFERS];
 		listenerOptions = null;
 		connectionContext = null;
 
@@ -73,36 +88,48 @@ public class PhysicalConnection extends Connection {
 	}
 	
 	/**
-	 * Write the data into the socket
+	 * Write the queued packets into the socket, several packets are
+	 * written by one gathering write. If the socket buffer is full
+	 * before all the data is sent, the socket is armed for write event
+	 * and the rest will be sent when the socket becomes writable.
+	 * @see #onSendCompleted(Ptr)
 	 * 
 	 * @return true if succeed
 	 */
     private boolean WriteBytes() {
         //We should call send, until the return value is EAGAIN
 	    ServerStats stats = serverImpl.getServerStats();
-	    ServerOptions options = serverImpl.getServerOptions();
         while (true) {
-        	// How many bytes to send
-            int dwToPick = Math.min(options.getSocketBufferSize(), 
-            		oBuffer.getDataSize());
-            if (dwToPick == 0) {
+            if (sendViews.isEmpty()) {
                 return true;
             }
+            
+            int nViews = 0;
+            for (ByteBuffer view : sendViews) {
+            	gatheredViews[nViews ++] = view;
+            	if (nViews == MAX_GATHERED_BUFFERS) {
+            		break;
+            	}
+            }
 
             try {
-            	int ret = socket.send(oBuffer.getBuffer(), 0, dwToPick);
+            	long ret = socket.send(gatheredViews, 0, nViews);
             	
             	if (ret > 0) {
             		// Remove the data already sent
-            		oBuffer.pop(ret);
+            		removeSentBuffers();
+            		nPendingBytes -= (int) ret;
 
                     if (!isObserverChannel()) {
                         stats.addToCumul(ServerStats.Measures.BandwidthOutbound, 
-                        		dwToPick);
+                        		(int) ret);
                         stats.addToKeyedDuration(
                         		ServerStats.Measures.BandwidthOutboundPerConnection, 
-                        		this.getSocket().hashCode(), dwToPick);
+                        		this.getSocket().hashCode(), (int) ret);
                     }
+            	} else if (ret == 0) {
+            		// Socket buffer is full, wait until it is writable
+            		return postSend();
             	} else {
             		return false;
             	}
@@ -112,9 +139,94 @@ public class PhysicalConnection extends Connection {
         }
     }
 
+    /**
+     * Release the buffers at the head of the queue which are sent.
+     */
+    private void removeSentBuffers() {
+    	while (!sendViews.isEmpty() && !sendViews.peek().hasRemaining()) {
+    		sendViews.poll();
+    		sendQueue.poll().release();
+    	}
+    }
+
+    /**
+     * Put the encoded bytes at the tail of the send queue, the buffer
+     * is owned by the queue since then.
+     * 
+     * @param buffer  the encoded bytes
+     * @return  Retry if there are too many bytes pending
+     */
+    private SendResult queueForSend(Buffer buffer) {
+    	return queueForSend(buffer, buffer.getDataView());
+    }
+
+    /**
+     * @see #queueForSend(Buffer)
+     * @param buffer  the encoded bytes
+     * @param view    the view of the bytes used to write into the socket
+     * @return  Retry if there are too many bytes pending
+     */
+    private SendResult queueForSend(Buffer buffer, ByteBuffer view) {
+    	int nSize = buffer.getDataSize();
+    	if (nSize == 0) {
+    		buffer.release();
+    		return SendResult.OK;
+    	}
+
+    	// The bytes encoded by a stack keeping the state across the 
+    	// packets must be sent, or the peer could not decode the later
+    	// ones, so the limit is only checked before encoding then
+    	Protocol protocol = getProtocol();
+    	boolean isDroppable = protocol == null || 
+    		protocol.isStackEncodingShareable();
+
+    	// Always accept one packet even it is larger than the limit
+    	if (isDroppable && nPendingBytes > 0 && 
+    			nPendingBytes + nSize > nMaxPendingBytes) {
+    		buffer.release();
+    		return SendResult.Retry;
+    	}
+
+    	sendQueue.add(buffer);
+    	sendViews.add(view);
+    	nPendingBytes += nSize;
+    	return SendResult.OK;
+    }
+
+    private void clearSendQueue() {
+    	Buffer buffer;
+    	while ((buffer = sendQueue.poll()) != null) {
+    		buffer.release();
+    	}
+    	sendViews.clear();
+    	nPendingBytes = 0;
+    }
+
+    /**
+     * Arm the socket for write event.
+     * 
+     * @return true if succeed
+     */
+    private boolean postSend() {
+    	if (bWriteInProgress) {
+    		return true;
+    	}
+
+    	if (!serverImpl.getIOQueue().rearmSocketForWrite(getSocket(), this)) {
+    		return false;
+    	}
+
+    	bWriteInProgress = true;
+    	incrementIoWorkersReferenceCounter();
+    	return true;
+    }
+
     private void CloseSocket() {
     	socket.close();
     	status = Status.Disposable;
+
+        // Remove from the queue
+        serverImpl.getIOQueue().deleteSocketContext(socket);
     }
 
     public void closeConnection(boolean bWaitForSendsToComplete) {
@@ -127,7 +239,7 @@ public class PhysicalConnection extends Connection {
     	
     	//Either connected or attached :
         if (bWaitForSendsToComplete) {
-            if (oBuffer.getDataSize() == 0) {
+            if (sendQueue.isEmpty()) {
                 CloseSocket();
             } else {
                 status = Status.WaitingForWrite;
@@ -136,9 +248,6 @@ public class PhysicalConnection extends Connection {
             CloseSocket();
         }
         
-        // Remove from the queue
-        serverImpl.getIOQueue().deleteSocketContext(socket);
-        
         Debug.debug("Connection closed: " + rPeerIP + ":" + rPeerPort);
         
         csLock.unlock();
@@ -155,9 +264,20 @@ public class PhysicalConnection extends Connection {
     	}
     }
 
+    /**
+     * Read the bytes from the socket until there is nothing to read or
+     * the buffer is full.
+     * 
+     * @param incomingBytes  the buffer to store the bytes, it is allocated
+     *                       if it is not yet
+     * @param dwIoSize       reserved
+     * @return  false if the connection is closed
+     */
     public boolean readReceivedBytes(RecyclableBuffer incomingBytes, 
     		int dwIoSize) {
-        incomingBytes.doAllocate(RecyclableBuffer.Type.Socket);
+    	if (incomingBytes.getCapacity() == 0) {
+    		incomingBytes.doAllocate(RecyclableBuffer.Type.Socket);
+    	}
         
         while (true) {
     		if (incomingBytes.isFull()) {
@@ -165,9 +285,7 @@ public class PhysicalConnection extends Connection {
     		}
 
     		try {
-    			int ret = socket.recv(incomingBytes.getBuffer(), 
-    					incomingBytes.getDataSize(),
-    					incomingBytes.getRemainingSize());
+    			int ret = socket.recv(incomingBytes.getSpaceView());
     			
     			if (ret < 0) {
     				return false;
@@ -177,8 +295,10 @@ public class PhysicalConnection extends Connection {
     				break;
     			}
     			
-    			Debug.debug(ret + " bytes read from " + rPeerIP + ":" + 
-    					rPeerPort);
+    			if (Debug.isEnabled()) {
+    				Debug.debug(ret + " bytes read from " + rPeerIP + ":" + 
+    						rPeerPort);
+    			}
 
                 incomingBytes.growSize(ret);
                 dtLastReceiveTime = System.currentTimeMillis();
@@ -201,6 +321,46 @@ public class PhysicalConnection extends Connection {
         return socket.isConnected();
     }
 
+    /**
+     * Queue a read event to process the data already received, instead
+     * of waiting for the socket to be readable.
+     * 
+     * @return  false if the event could not be queued
+     */
+    public boolean postPendingRead() {
+    	if (status.value() < Status.Connected.value()){
+    		return false;
+    	}
+    	
+    	incrementIoWorkersReferenceCounter();
+    	if (!serverImpl.getIOQueue().postReadEvent(getSocket(), this)) {
+    		decrementIoWorkersReferenceCounter();
+    		return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * Queue a read event, @see {@link #postPendingRead()}. The connection
+     * is not armed to read while it is suspended, so it is closed if the
+     * event could not be queued, or it would wait forever.
+     */
+    @Override
+    public boolean resumeRead() {
+    	if (postPendingRead()) {
+    		return true;
+    	}
+
+    	if (status == Status.Attached) {
+    		serverImpl.getClientFactory().disconnect(
+    				getLogicalConnectionImpl(), false, 
+    				DisconnectionReason.UnknownFailure);
+    	} else {
+    		closeConnection(false);
+    	}
+    	return false;
+    }
+
     public SendResult pushPacket(OutgoingPacket packet) {
     	csLock.lock();
     	SendResult ret = pushPacketCommon(packet);
@@ -211,24 +371,33 @@ public class PhysicalConnection extends Connection {
     public SendResult pushPacketCommon(OutgoingPacket packet) {
         if (status.value() < Status.Connected.value()) {
     		return SendResult.NotOK;
+        }
+        if (nPendingBytes >= nMaxPendingBytes) {
+        	return SendResult.Retry;
         }
 	    Dispatcher dispatcher = serverImpl.getDispatcher();
 	    ProtocolManager theProtocolManager = serverImpl.getProtocolManager();
 	    ServerStats stats = serverImpl.getServerStats();
 
-    	int nBytesWritten = oBuffer.getDataSize();
-
+	    RecyclableBuffer buffer = new RecyclableBuffer(
+	    		RecyclableBuffer.Type.Single);
     	SerializeData serializeData = new SerializeData(getProtocol());
     	NetworkSerializeResult result = 
-    		theProtocolManager.serializeOutgoingPacket(this, packet, oBuffer, 
+    		theProtocolManager.serializeOutgoingPacket(this, packet, buffer, 
     				serializeData);
 
         if (result != NetworkSerializeResult.Success) {
+        	buffer.release();
     		return result == NetworkSerializeResult.Retry ? 
     				SendResult.Retry : SendResult.NotOK;
         }
 
-    	nBytesWritten = oBuffer.getDataSize() - nBytesWritten;
+    	int nBytesWritten = buffer.getDataSize();
+    	SendResult ret = queueForSend(buffer);
+    	if (ret != SendResult.OK) {
+    		return ret;
+    	}
+
         stats.addToCumul(ServerStats.Measures.BandwidthOutstanding, 
         		nBytesWritten);
         String serviceName;
@@ -244,23 +413,91 @@ public class PhysicalConnection extends Connection {
     	return SendResult.OK;
     }
 
+    /**
+     * Push a broadcast packet. If the protocol stack is shareable, the 
+     * packet is encoded once and the encoded bytes are queued by all the
+     * connections using the same stack.
+     * 
+     * @param packetInfo  the packet from <code>BroadcastQueue</code>
+     * @return  the result
+     */
+    public SendResult pushBroadcastPacket(PacketInfo packetInfo) {
+    	Protocol protocol = getProtocol();
+    	if (protocol != null && !protocol.isStackEncodingShareable()) {
+    		return pushPacket(packetInfo.getPacket());
+    	}
+
+    	csLock.lock();
+    	SendResult ret = pushBroadcastPacketCommon(packetInfo, protocol);
+    	csLock.unlock();
+    	return ret;
+    }
+
+    private SendResult pushBroadcastPacketCommon(PacketInfo packetInfo, 
+    		Protocol protocol) {
+        if (status.value() < Status.Connected.value()) {
+    		return SendResult.NotOK;
+        }
+        if (nPendingBytes >= nMaxPendingBytes) {
+        	return SendResult.Retry;
+        }
+
+        SharedBuffer frame = packetInfo.getEncodedFrame(this, protocol, 
+        		serverImpl.getProtocolManager());
+        if (frame == null) {
+        	// Let the common path report the failure
+        	return pushPacketCommon(packetInfo.getPacket());
+        }
+
+        frame.retain();
+    	int nBytesWritten = frame.getDataSize();
+        SendResult ret = queueForSend(frame, frame.newDataView());
+    	if (ret != SendResult.OK) {
+    		return ret;
+    	}
+
+	    ServerStats stats = serverImpl.getServerStats();
+        stats.addToCumul(ServerStats.Measures.BandwidthOutstanding, 
+        		nBytesWritten);
+
+        if (!bWriteInProgress) {
+    		return WriteBytes() ? SendResult.OK : SendResult.NotOK;
+        }
+    	return SendResult.OK;
+    }
+
     public SendResult pushBytes(Buffer buffer, Protocol protocol) {
+    	csLock.lock();
+    	SendResult ret = pushBytesCommon(buffer, protocol);
+    	csLock.unlock();
+    	return ret;
+    }
+
+    private SendResult pushBytesCommon(Buffer buffer, Protocol protocol) {
     	// This is called by protocol. There is no need to do statistics.
     	if (status.value() < Status.Connected.value()) {
     		return SendResult.NotOK;
     	}
 	    ProtocolManager theProtocolManager = serverImpl.getProtocolManager();
 
+	    RecyclableBuffer output = new RecyclableBuffer(
+	    		RecyclableBuffer.Type.Single);
     	SerializeData serializeData = new SerializeData(protocol);
     	NetworkSerializeResult result = 
     		theProtocolManager.serializeOutgoinBytes(
-    				this, buffer, oBuffer, serializeData);
+    				this, buffer, output, serializeData);
     	
     	if (result != NetworkSerializeResult.Success) {
+    		output.release();
     		return result == NetworkSerializeResult.Retry ? 
     				SendResult.Retry : SendResult.NotOK;
     	}
 
+    	SendResult ret = queueForSend(output);
+    	if (ret != SendResult.OK) {
+    		return ret;
+    	}
+
     	if (!bWriteInProgress) {
     		return WriteBytes() ? SendResult.OK : SendResult.NotOK;
     	}
@@ -293,8 +530,8 @@ public class PhysicalConnection extends Connection {
     	}
 
         boolean bIsBufferIdle = 
-        	(oBuffer.getDataSize() == 0 && !bWriteInProgress);
-        pIsBufferIdle.set(new Boolean(bIsBufferIdle));
+        	(sendQueue.isEmpty() && !bWriteInProgress);
+        pIsBufferIdle.set(Boolean.valueOf(bIsBufferIdle));
         if(bIsBufferIdle && status == Status.WaitingForWrite) {
     		CloseSocket();
         	csLock.unlock();
@@ -305,7 +542,14 @@ public class PhysicalConnection extends Connection {
     	return true;
     }
 
-    public Buffer getSendBuffer() { return oBuffer; }
+    /**
+     * How many bytes could still be queued for sending.
+     * 
+     * @return  the free space of the send queue
+     */
+    public int getSendQueueRemainingSize() { 
+    	return Math.max(0, nMaxPendingBytes - nPendingBytes);
+    }
 
     public boolean isWriteInProgress() { return  bWriteInProgress; }
 
@@ -324,13 +568,16 @@ public class PhysicalConnection extends Connection {
 
     	this.bIsObserver = bIsObserver;
 
+    	this.nMaxPendingBytes = serverImpl.getMaxBufferSizePerMessage() * 
+    		serverImpl.getServerOptions().getMaxPendingOutgoingMessages();
+
     	this.status = Status.Connected;
 
     	this.ioWorkersReferenceCounter = new AtomicLong(0);
     }
 
     public void recycle() {
-    	oBuffer.clearBytes();
+    	clearSendQueue();
 
     	if (connectionContext != null) {
     	    ConnectionContextPool connectionContextPool = 
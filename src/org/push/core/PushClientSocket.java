@@ -1,6 +1,7 @@
 package org.push.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
@@ -23,6 +24,41 @@ public interface PushClientSocket {
 	
 	public int recv(byte[] buffer, int offset, int size) throws IOException;
 	
+	/**
+	 * Write the remaining bytes of the buffer into the socket, the
+	 * position of the buffer is advanced by the bytes written.
+	 * 
+	 * @param buffer  the bytes to send
+	 * @return  the bytes written, 0 if the socket buffer is full
+	 * @throws IOException
+	 */
+	public int send(ByteBuffer buffer) throws IOException;
+	
+	/**
+	 * Read the bytes from the socket into the remaining space of the 
+	 * buffer, the position of the buffer is advanced by the bytes read.
+	 * 
+	 * @param buffer  the space to receive the bytes
+	 * @return  the bytes read, 0 if nothing is available or -1 if 
+	 *          the connection is closed by peer
+	 * @throws IOException
+	 */
+	public int recv(ByteBuffer buffer) throws IOException;
+	
+	/**
+	 * Write the remaining bytes of a sequence of buffers into the socket
+	 * by one call, the positions of the buffers are advanced by the 
+	 * bytes written.
+	 * 
+	 * @param buffers  the buffers to send
+	 * @param offset   the index of the first buffer to send
+	 * @param length   how many buffers to send
+	 * @return  the bytes written, 0 if the socket buffer is full
+	 * @throws IOException
+	 */
+	public long send(ByteBuffer[] buffers, int offset, int length) 
+		throws IOException;
+	
 	public boolean isOpen();
 	
 	public boolean isConnected();
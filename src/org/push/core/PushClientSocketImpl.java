@@ -22,8 +22,6 @@ public class PushClientSocketImpl implements PushClientSocket {
 	private Socket socket;
 	
 	private int socketBufferSize;
-	private ByteBuffer iBuf;
-	private ByteBuffer oBuf;
 	
 	PushClientSocketImpl(SocketChannel channel, int socketBufferSize) 
 		throws IOException {
@@ -32,8 +30,6 @@ public class PushClientSocketImpl implements PushClientSocket {
 		channel.configureBlocking(false);
 		this.socket = channel.socket();
 		this.socketBufferSize = socketBufferSize;
-		this.iBuf = ByteBuffer.allocate(socketBufferSize);
-		this.oBuf = ByteBuffer.allocate(socketBufferSize);
 	}
 
 	public String getIP() {
@@ -72,36 +68,77 @@ public class PushClientSocketImpl implements PushClientSocket {
 			return 0;
 		}
 
-		int maxSize = Math.min(socketBufferSize, size);
-		oBuf.clear();
-		oBuf.put(buffer, offset, maxSize);
-		oBuf.flip();
-		
-		return channel.write(oBuf);
+		// Write from the caller's array, no intermediate copy
+		return channel.write(ByteBuffer.wrap(buffer, offset, 
+				Math.min(socketBufferSize, size)));
 	}
 
 	public int recv(byte[] buffer, int offset, int size) throws IOException {
 		Utils.unsignedIntArgCheck(size, "size");
+		Utils.unsignedIntArgCheck(offset, "offset");
 		
 		if (size == 0) {
 			return 0;
 		}
 
-		int maxSize = Math.min(socketBufferSize, size);
-		if (maxSize <= 0) {
+		// Read into the caller's array, no intermediate copy
+		return channel.read(ByteBuffer.wrap(buffer, offset, 
+				Math.min(socketBufferSize, size)));
+	}
+
+	public int send(ByteBuffer buffer) throws IOException {
+		Utils.nullArgCheck(buffer, "buffer");
+		
+		if (!buffer.hasRemaining()) {
 			return 0;
 		}
+		
+		if (buffer.isDirect() || buffer.remaining() <= socketBufferSize) {
+			return channel.write(buffer);
+		}
+		
+		// JDK copies a heap buffer into a temporary direct buffer as 
+		// large as the remaining bytes, so keep it bounded.
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + socketBufferSize);
+		try {
+			return channel.write(buffer);
+		} finally {
+			buffer.limit(limit);
+		}
+	}
 
-		iBuf.clear();
-		iBuf.limit(maxSize);
+	public int recv(ByteBuffer buffer) throws IOException {
+		Utils.nullArgCheck(buffer, "buffer");
+		
+		if (!buffer.hasRemaining()) {
+			return 0;
+		}
+		
+		if (buffer.isDirect() || buffer.remaining() <= socketBufferSize) {
+			return channel.read(buffer);
+		}
 		
-		int recvSize = channel.read(iBuf);
-		if (recvSize > 0) {
-			System.arraycopy(iBuf.array(), 0, buffer, 
-					offset, recvSize);
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + socketBufferSize);
+		try {
+			return channel.read(buffer);
+		} finally {
+			buffer.limit(limit);
 		}
+	}
 
-		return recvSize;
+	public long send(ByteBuffer[] buffers, int offset, int length) 
+		throws IOException {
+		Utils.nullArgCheck(buffers, "buffers");
+		Utils.unsignedIntArgCheck(offset, "offset");
+		Utils.unsignedIntArgCheck(length, "length");
+		
+		if (length == 0) {
+			return 0;
+		}
+		
+		return channel.write(buffers, offset, length);
 	}
 
 	public boolean isOpen() {
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.spi.SelectorProvider;
 
 /**
  * Implementation of <code>PushServerSocket</code> by Java NIO.
@@ -18,7 +19,12 @@ public class PushServerSocketImpl implements PushServerSocket {
 	private int socketBufferSize;
 
 	PushServerSocketImpl(int socketBufferSize) throws IOException {
-		serverChannel = ServerSocketChannel.open();
+		this(SelectorProvider.provider(), socketBufferSize);
+	}
+
+	PushServerSocketImpl(SelectorProvider provider, int socketBufferSize) 
+		throws IOException {
+		serverChannel = provider.openServerSocketChannel();
 		serverSocket = serverChannel.socket();
 		this.socketBufferSize = socketBufferSize;
 	}
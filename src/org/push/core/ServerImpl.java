@@ -60,6 +60,12 @@ public class ServerImpl {
 	private ServerStats stats;
 	private ServerOptions options;
 	
+	/* Size of the buffer to hold an encoded message */
+	private int nMaxBufferSizePerMessage;
+	
+	/* Milliseconds to create the pools at startup */
+	private long nWarmUpDuration;
+	
 	// Components of this server monitor
 	private MonitorAcceptor monitorAcceptor;
 	private MonitorsBroadcastManager monitorBroadcastManager;
@@ -106,6 +112,9 @@ public class ServerImpl {
 	private void doPeriodicJobs() {
 	    nSecsGCCount += 1;
 	    nSecsPerfObservCount += 1;
+	    
+	    // Sample the occupancy of the pools every second
+	    stats.samplePools();
 
 	    /* Garbage collection */
 	    if(nSecsGCCount == uGCPeriod) {
@@ -116,6 +125,12 @@ public class ServerImpl {
 	        
 	        // Clear the inactive connections
 	        clientFactoryImpl.scrutinize();
+	        
+	        // Give back the buffers created for the peak
+	        pool.trim();
+	        
+	        // Report the pooled objects which are never returned
+	        stats.checkPoolLeaks();
 	    }
 
 	    /* Reaching the sampling point, save the server status */
@@ -191,41 +206,62 @@ public class ServerImpl {
 		Utils.unsignedIntArgCheck(nMaxPoolConnections, "nMaxPoolConnections");
 
 		for (Acceptor acceptor : listenersMap.values()) {
-			if (!acceptor.getProtocol().initialize(nInitPoolConnections, 
-					nMaxPoolConnections))
+			Protocol protocol = acceptor.getProtocol();
+			protocol.setMagazineSize(options.getPoolMagazineSize());
+			protocol.setInUseTracking(options.isPoolTrackingEnabled());
+			if (!protocol.initialize(nInitPoolConnections, 
+					nMaxPoolConnections, options.getPoolInitThreads()))
 				return false;
+			stats.registerPool("protocol" + acceptor.getListeningPort(), 
+					protocol);
 		}
 
 		return true;
 	}
 	
-	private boolean initializeBufferPool(int nInitPoolConnections, 
-			int nMaxPoolConnections) {
+	/**
+	 * Only the segments used by the initial connections and the threads
+	 * are reserved, the pool creates more on demand within the memory
+	 * limit and {@link BufferPool#trim()} gives them back later.
+	 */
+	private boolean initializeBufferPool(int nInitPoolConnections) {
 		int nMaxThreads = options.getWorkersCount() + 20;
 		//
+		pool.setMagazineSize(options.getPoolMagazineSize());
+		pool.setInUseTracking(options.isPoolTrackingEnabled());
+		// Only the buffers are expected to be returned shortly
+		pool.setLeakDetection(options.getPoolLeakSampleRate(), 
+				options.getPoolLeakThreshold() * 1000L);
+		stats.registerPool("buffers", pool);
+		pool.setMaxBytes(options.getMaxPoolMemory());
+		pool.setInitThreads(options.getPoolInitThreads());
+		boolean isDirect = options.isDirectBuffersEnabled();
+
 		int nMessageSize = calculateMaxBufferSizePerMessage();
-		int nMaxAdditionalMsgBuffersForProtocols = 
-			calculateAdditionalBuffersForProtocols(nMaxPoolConnections, 
+		int nAdditionalMsgBuffersForProtocols = 
+			calculateAdditionalBuffersForProtocols(nInitPoolConnections, 
 					nMaxThreads);
+		// Each connection queues up to getMaxPendingOutgoingMessages()
+		// encoded packets, each in its own segment.
+		int nQueuedMsgBuffers = 
+			nInitPoolConnections * options.getMaxPendingOutgoingMessages();
 		if (!pool.create(RecyclableBuffer.Type.Single, 
-				nMaxThreads * 4 + nMaxAdditionalMsgBuffersForProtocols, 
-				nMessageSize)) {
+				nMaxThreads * 4 + nAdditionalMsgBuffersForProtocols + 
+				nQueuedMsgBuffers, nMessageSize, isDirect)) {
 			return false;
 		}
+		nMaxBufferSizePerMessage = nMessageSize;
 
+		// The received data of a connection is allocated when a message
+		// is split over several reads
 		if(!pool.create(RecyclableBuffer.Type.Double, 
-				nMaxPoolConnections, nMessageSize * 2)) {
-			return false;
-		}
-
-		if(!pool.create(RecyclableBuffer.Type.Multiple, 
-				nMaxPoolConnections, 
-				options.getMaxPendingOutgoingMessages() * nMessageSize)) {
+				nInitPoolConnections, nMessageSize * 2, isDirect)) {
 			return false;
 		}
 		
+		// The socket buffer is the scratch buffer of a worker
 		if(!pool.create(RecyclableBuffer.Type.Socket, 
-				nMaxPoolConnections * 2, options.getSocketBufferSize())) {
+				nMaxThreads, options.getSocketBufferSize(), isDirect)) {
 			return false;
 		}
 		
@@ -234,18 +270,28 @@ public class ServerImpl {
 	
 	private boolean initConnectionPool(int nInitPoolConnections, 
 			int nMaxPoolConnections) {
+		int nThreads = options.getPoolInitThreads();
+		// No leak detection, a connection is held as long as its client
+		// stays, which could be hours
+		stats.registerPool("physicalConnections", thePhysicalConnectionPool);
+		stats.registerPool("logicalConnections", theLogicalConnectionPool);
+		if (options.challengeClients()) {
+			stats.registerPool("connectionContexts", 
+					theConnectionContextPool);
+		}
+		
 		if (!thePhysicalConnectionPool.initialize(nInitPoolConnections, 
-				nMaxPoolConnections)) {
+				nMaxPoolConnections, nThreads)) {
 			return false;
 		}
 
 		if (!theLogicalConnectionPool.initialize(nInitPoolConnections, 
-				nMaxPoolConnections)) {
+				nMaxPoolConnections, nThreads)) {
 			return false;
 		}
 		if (options.challengeClients() && 
 				!theConnectionContextPool.initialize(nInitPoolConnections, 
-						nMaxPoolConnections)) {
+						nMaxPoolConnections, nThreads)) {
 				return false;
 		}
 		Debug.debug("Connection Context Created");
@@ -276,7 +322,7 @@ public class ServerImpl {
 		stats = new ServerStats(options, dispatcher.getServiceNames(), 
 				broadcastManager.getQueuesNames());
 
-		ioQueue = new IOQueueImpl();
+		ioQueue = new IOQueueImpl(options);
 		clientFactoryImpl = new ClientFactory(this);
 		demux = new Demultiplexor(this);
 		garbageCollector = new GarbageCollector(theLogicalConnectionPool);
@@ -308,6 +354,15 @@ public class ServerImpl {
 
 	public ServerOptions getServerOptions() { return options; }
 	
+	public int getMaxBufferSizePerMessage() { 
+		return nMaxBufferSizePerMessage; 
+	}
+	
+	/**
+	 * @return  milliseconds to create the pools when the server starts
+	 */
+	public long getWarmUpDuration() { return nWarmUpDuration; }
+	
 	public ProtocolManager getProtocolManager() {
 		return theProtocolManager;
 	}
@@ -357,8 +412,9 @@ public class ServerImpl {
 	public boolean start(boolean startInSeparateThread) {
 		int nMaxPoolConnections = options.getMaxConnections() + 10;
 		int nInitPoolConnections = options.getInitConnections();
+		long dtWarmUpStart = System.currentTimeMillis();
 		
-		if (!initializeBufferPool(nInitPoolConnections, nMaxPoolConnections)) {
+		if (!initializeBufferPool(nInitPoolConnections)) {
 			return false;
 		}
 		Debug.debug("Buffer Pool Created");
@@ -368,6 +424,10 @@ public class ServerImpl {
 			return false;
 		}
 		Debug.debug("Connection Pool Created");
+		
+		nWarmUpDuration = System.currentTimeMillis() - dtWarmUpStart;
+		Debug.debug("Pools warmed up in " + nWarmUpDuration + " ms with " + 
+				options.getPoolInitThreads() + " thread(s)");
 
 		/* Create the I/O Queue to monitor the I/O event */
 	    if (!ioQueue.create()) {
@@ -33,6 +33,55 @@ public class ServerOptions {
      */
     private int nWorkersCount;
     
+    /**
+     * Count of reactors (each with its own selector and event queue)
+     * which poll the socket I/O events
+     */
+    private int nReactorsCount;
+    
+    /**
+     * Maximum messages dispatched for one read event of a connection,
+     * 0 means no limit
+     */
+    private int nMaxMessagesPerRead;
+    
+    /**
+     * Free buffers and protocol contexts cached by each thread
+     */
+    private int nPoolMagazineSize;
+    
+    /**
+     * Indicate if the pools of buffers and protocol contexts track the
+     * objects in use, which detects the objects returned twice
+     */
+    private boolean isPoolTrackingEnabled;
+    
+    /**
+     * Record the stack of 1 in nPoolLeakSampleRate borrowings from the
+     * buffer pool, 0 means no leak detection
+     */
+    private int nPoolLeakSampleRate;
+    
+    /**
+     * Seconds after which a sampled object not returned is reported
+     */
+    private int nPoolLeakThreshold;
+    
+    /**
+     * How many threads create the pooled objects at startup
+     */
+    private int nPoolInitThreads;
+    
+    /**
+     * Maximum bytes of the buffers in the pool, 0 means no limit
+     */
+    private long nMaxPoolMemory;
+    
+    /**
+     * Indicate if the buffers of the connections are off the heap
+     */
+    private boolean isDirectBuffersEnabled;
+    
     /**
      * Count of <code>BroadcatStreamer</code> of this server
      */
@@ -80,9 +129,9 @@ public class ServerOptions {
     
     
     /**
-     * 
+     * Type of the socket transport, @see {@link SocketFactory}
      */
-    private int socketType = 0;
+    private int socketType = SocketFactory.NIO;
 
 	public ServerOptions() {
 		nMaxConnections = 100;
@@ -90,6 +139,15 @@ public class ServerOptions {
 		challengeClients = false;
 		uLoginExpireDuration = 35;
 		nWorkersCount = Runtime.getRuntime().availableProcessors() * 2;
+		nReactorsCount = 1;
+		nMaxMessagesPerRead = 64;
+		nPoolMagazineSize = 16;
+		isPoolTrackingEnabled = false;
+		nPoolInitThreads = 1;
+		nPoolLeakSampleRate = 0;
+		nPoolLeakThreshold = 300;
+		nMaxPoolMemory = 0;
+		isDirectBuffersEnabled = false;
 		nStreamers = 1;
 		isProfilingEnabled = false;
 		isMonitorEnabled = false;
@@ -110,6 +168,28 @@ public class ServerOptions {
 	
 	public int getWorkersCount() { return this.nWorkersCount; }
 	
+	public int getReactorsCount() { return this.nReactorsCount; }
+	
+	public int getMaxMessagesPerRead() { return this.nMaxMessagesPerRead; }
+	
+	public int getPoolMagazineSize() { return this.nPoolMagazineSize; }
+	
+	public boolean isPoolTrackingEnabled() { 
+		return this.isPoolTrackingEnabled; 
+	}
+	
+	public int getPoolInitThreads() { return this.nPoolInitThreads; }
+	
+	public int getPoolLeakSampleRate() { return this.nPoolLeakSampleRate; }
+	
+	public int getPoolLeakThreshold() { return this.nPoolLeakThreshold; }
+	
+	public long getMaxPoolMemory() { return this.nMaxPoolMemory; }
+	
+	public boolean isDirectBuffersEnabled() { 
+		return this.isDirectBuffersEnabled; 
+	}
+	
 	public int getStreamers() { return this.nStreamers; }
 	
 	public int getSamplingRate() { return this.samplingRate; }
@@ -158,6 +238,118 @@ public class ServerOptions {
 		this.nWorkersCount = nWorkersCount;
 	}
 	
+	/**
+	 * Set how many reactors poll the socket I/O events. The connections
+	 * are assigned to the reactors by round-robin, and the workers are
+	 * shared out among the reactors. Usually one reactor per core is 
+	 * used when there are lots of connections.
+	 * @param nReactorsCount  count of reactors, at least 1
+	 */
+	public void setReactorsCount(int nReactorsCount) {
+		if (nReactorsCount < 1) {
+			throw new IllegalArgumentException(
+					"nReactorsCount must be positive");
+		}
+		
+		this.nReactorsCount = nReactorsCount;
+	}
+	
+	/**
+	 * Set how many messages are dispatched at most for one read event.
+	 * All the complete messages received are dispatched in a batch, when
+	 * the limit is reached the rest are dispatched by a later event so 
+	 * one connection could not hold a worker too long.
+	 * @param nMaxMessagesPerRead  the limit, 0 means no limit
+	 */
+	public void setMaxMessagesPerRead(int nMaxMessagesPerRead) {
+		Utils.unsignedIntArgCheck(nMaxMessagesPerRead, "nMaxMessagesPerRead");
+		
+		this.nMaxMessagesPerRead = nMaxMessagesPerRead;
+	}
+	
+	/**
+	 * Set how many free buffers and protocol contexts could be cached by
+	 * each thread, so most borrowing and returning do not contend with
+	 * the other threads.
+	 * @param nPoolMagazineSize  0 to disable the cache
+	 */
+	public void setPoolMagazineSize(int nPoolMagazineSize) {
+		Utils.unsignedIntArgCheck(nPoolMagazineSize, "nPoolMagazineSize");
+		
+		this.nPoolMagazineSize = nPoolMagazineSize;
+	}
+	
+	/**
+	 * Set how many threads create the buffers, connections and protocol
+	 * contexts reserved at startup, it shortens the startup when 
+	 * {@link #getInitConnections()} is large. Each thread creates its
+	 * own partition of each pool, so the objects of a partition are 
+	 * close in memory. If it is more than 1, the factory methods of 
+	 * <code>Server</code> must be thread safe.
+	 * @param nPoolInitThreads  count of threads, at least 1
+	 */
+	public void setPoolInitThreads(int nPoolInitThreads) {
+		if (nPoolInitThreads < 1) {
+			throw new IllegalArgumentException(
+					"nPoolInitThreads must be positive");
+		}
+		
+		this.nPoolInitThreads = nPoolInitThreads;
+	}
+	
+	/**
+	 * Detect the buffers which are never returned to the pool. The stack
+	 * of 1 in nPoolLeakSampleRate borrowings is recorded, and the sampled
+	 * buffers not returned after nPoolLeakThreshold seconds are reported
+	 * with that stack at each garbage collection period. The pools of
+	 * the connections are not checked, as a connection is held as long
+	 * as the client stays.
+	 * @param nPoolLeakSampleRate  0 to disable the leak detection
+	 * @param nPoolLeakThreshold   in seconds
+	 */
+	public void setPoolLeakDetection(int nPoolLeakSampleRate, 
+			int nPoolLeakThreshold) {
+		Utils.unsignedIntArgCheck(nPoolLeakSampleRate, "nPoolLeakSampleRate");
+		Utils.unsignedIntArgCheck(nPoolLeakThreshold, "nPoolLeakThreshold");
+		
+		this.nPoolLeakSampleRate = nPoolLeakSampleRate;
+		this.nPoolLeakThreshold = nPoolLeakThreshold;
+	}
+	
+	/**
+	 * Track the buffers and protocol contexts in use, it costs a 
+	 * concurrent map operation for each borrowing and returning so it
+	 * is usually for debugging only.
+	 * @param isPoolTrackingEnabled  true to track
+	 */
+	public void setPoolTrackingEnabled(boolean isPoolTrackingEnabled) {
+		this.isPoolTrackingEnabled = isPoolTrackingEnabled;
+	}
+	
+	/**
+	 * Limit the memory of the buffers in the pool. The pool creates more
+	 * buffers than reserved when required, until this limit is reached.
+	 * @param nMaxPoolMemory  the limit in bytes, 0 means no limit
+	 */
+	public void setMaxPoolMemory(long nMaxPoolMemory) {
+		if (nMaxPoolMemory < 0) {
+			throw new IllegalArgumentException(
+					"nMaxPoolMemory could not be negative");
+		}
+		
+		this.nMaxPoolMemory = nMaxPoolMemory;
+	}
+	
+	/**
+	 * Put the buffers of the connections off the heap, so the socket
+	 * reads and writes them without an extra copy. The direct memory is
+	 * limited by the option -XX:MaxDirectMemorySize of the JVM.
+	 * @param isDirectBuffersEnabled  true to use the direct buffers
+	 */
+	public void setDirectBuffersEnabled(boolean isDirectBuffersEnabled) {
+		this.isDirectBuffersEnabled = isDirectBuffersEnabled;
+	}
+	
 	public void setStreamers(int nStreamers) {
 		Utils.unsignedIntArgCheck(nStreamers, "nStreamers");
 		
@@ -209,7 +401,15 @@ public class ServerOptions {
 		this.password = password;
 	}
 	
+	/**
+	 * @param socketType  the type of the socket, only 
+	 *                    {@link SocketFactory#NIO} is supported
+	 */
 	public void setSocketType(int socketType) {
+		if (!SocketFactory.isSupported(socketType)) {
+			throw new IllegalArgumentException("Unknown socket type: " + 
+					socketType);
+		}
 		this.socketType = socketType;
 	}
 }
@@ -1,5 +1,6 @@
 package org.push.core;
 
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,6 +19,7 @@ import org.push.measures.MKAveragedMeasureArgs;
 import org.push.measures.Measure;
 import org.push.monitor.AnalyticsProtocol;
 import org.push.protocol.OutgoingPacket;
+import org.push.protocol.PoolGauges;
 import org.push.util.CppEnum;
 import org.push.util.Utils;
 
@@ -72,6 +74,10 @@ public class ServerStats {
 	// How many packets about performance have been created
 	private AtomicInteger packetCounter;
 
+	// The pools whose gauges are exported, by name
+	private ConcurrentMap<String, PoolGauges> poolsMap = 
+		new ConcurrentHashMap<String, PoolGauges>();
+
 	public ServerStats(ServerOptions options, String serviceNames, 
 			String queuesNames) {
 		this.options = options;
@@ -227,6 +233,64 @@ public class ServerStats {
 	    }
 	}
 
+	/**
+	 * Register a pool so its gauges are exported with the measures.
+	 * 
+	 * @param name  name of the pool in the packet
+	 * @param pool  the pool
+	 */
+	public void registerPool(String name, PoolGauges pool) {
+		poolsMap.put(name, pool);
+	}
+
+	/**
+	 * Sample the occupancy of all the pools registered, it is called
+	 * once in a while.
+	 */
+	public void samplePools() {
+		for (PoolGauges pool : poolsMap.values()) {
+			pool.sampleOccupancy();
+		}
+	}
+
+	/**
+	 * Report the objects not returned in time of all the pools 
+	 * registered.
+	 * 
+	 * @return  how many objects are not returned in time
+	 */
+	public int checkPoolLeaks() {
+		int nLeaks = 0;
+		for (PoolGauges pool : poolsMap.values()) {
+			nLeaks += pool.checkLeaks();
+		}
+		return nLeaks;
+	}
+
+	private void appendPools(StringBuilder sb) {
+		sb.append("<pools>");
+		PoolGauges pool;
+		for (Entry<String, PoolGauges> entry : poolsMap.entrySet()) {
+			pool = entry.getValue();
+			sb.append("<pool name=\"").append(entry.getKey());
+			sb.append("\" free=\"").append(pool.getFreeCount());
+			sb.append("\" inUse=\"").append(pool.getInUseCount());
+			sb.append("\" created=\"").append(pool.getCreatedCount());
+			sb.append("\" exhausted=\"").append(pool.getExhaustedCount());
+			sb.append("\" leaks=\"").append(pool.getLeakCount());
+			sb.append("\" occupancy=\"");
+			long[] counts = pool.getOccupancyHistogram().collectAndReset();
+			for (int i = 0; i < counts.length; i ++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(counts[i]);
+			}
+			sb.append("\"/>");
+		}
+		sb.append("</pools>");
+	}
+
 	/**
 	 * Build a packet containing the full information of 
 	 * performance, this packet will be sent to the monitor
@@ -275,6 +339,9 @@ public class ServerStats {
 	    sb.append(measuresMap.get(Measures.QoSSendRatePerChannel).collectAndReset(timestamp));
 	    sb.append(measuresMap.get(Measures.QoSAvgSendRatePerChannel).collectAndReset(timestamp));
 
+	    //Pools :
+	    appendPools(sb);
+
 	    sb.append("</stats>");
 	    sb.append("</root>");
 
@@ -1,14 +1,27 @@
 package org.push.core;
 
 import java.io.IOException;
+import java.nio.channels.spi.SelectorProvider;
 
 /**
  * A factory to create <code>PushServerSocket</code> object
  * 
+ * The type of the socket decides which <code>SelectorProvider</code> 
+ * is used. Only {@link #NIO} is supported, the default provider of the
+ * platform, which is already based on epoll on Linux. There is no other
+ * transport, the one-shot readiness is emulated by 
+ * <code>IOQueueImpl</code> on top of the default provider.
+ * 
+ * The selectors of the <code>IOQueue</code> must be opened by the same 
+ * provider as the sockets, @see {@link #getSelectorProvider(int)}
+ * 
  * @author Lei Wang
  */
 
 public class SocketFactory {
+	
+	/* Socket by the default provider of Java NIO */
+	public static final int NIO = 0;
 
 	private static final SocketFactory singleton = 
 		new SocketFactory();
@@ -19,8 +32,33 @@ public class SocketFactory {
 		return singleton;
 	}
 	
+	/**
+	 * @param option  the type of the socket
+	 * @return  true if the type is supported
+	 */
+	public static boolean isSupported(int option) {
+		return option == NIO;
+	}
+	
+	/**
+	 * Get the provider of the selectors and channels by the type of
+	 * the socket.
+	 * @param option  the type of the socket
+	 * @return  the provider
+	 * @throws IOException if the type is not supported on this platform
+	 */
+	public SelectorProvider getSelectorProvider(int option) 
+		throws IOException {
+		if (isSupported(option)) {
+			return SelectorProvider.provider();
+		}
+		
+		throw new IOException("Unknown socket type: " + option);
+	}
+	
 	public PushServerSocket createServerSocket(int option, 
 			int socketBufferSize) throws IOException {
-		return new PushServerSocketImpl(socketBufferSize);
+		return new PushServerSocketImpl(getSelectorProvider(option), 
+				socketBufferSize);
 	}
 }
@@ -0,0 +1,58 @@
+package org.push.core;
+
+import org.push.protocol.DeserializeData;
+import org.push.protocol.RecyclableBuffer;
+import org.push.util.Ptr;
+import org.push.util.Releasable;
+import org.push.util.StopWatch;
+
+/**
+ * The scratch objects of a worker thread. They are created once when
+ * the worker starts and reused by the <code>Dispatcher</code> for 
+ * every event handled by this worker, so handling the events does not 
+ * need to allocate objects or borrow buffers from the pool.
+ * 
+ * A context must only be used by one thread.
+ * 
+ * @author Lei Wang
+ */
+
+public class WorkerContext implements Releasable {
+
+	// Bytes read from the socket
+	private RecyclableBuffer incomingBytes;
+	
+	// Result of the de-serialization
+	private DeserializeData deserializeData;
+	
+	// Output of the intermediate protocol layers
+	private RecyclableBuffer decodeBuffer;
+	
+	private StopWatch watch;
+	
+	private Ptr<Boolean> pIsBufferIdle;
+	
+	public WorkerContext() {
+		incomingBytes = new RecyclableBuffer(RecyclableBuffer.Type.Socket);
+		deserializeData = new DeserializeData(null);
+		decodeBuffer = new RecyclableBuffer(RecyclableBuffer.Type.Single);
+		watch = new StopWatch();
+		pIsBufferIdle = new Ptr<Boolean>(Boolean.FALSE);
+	}
+	
+	public RecyclableBuffer getIncomingBytes() { return incomingBytes; }
+	
+	public DeserializeData getDeserializeData() { return deserializeData; }
+	
+	public RecyclableBuffer getDecodeBuffer() { return decodeBuffer; }
+	
+	public StopWatch getStopWatch() { return watch; }
+	
+	public Ptr<Boolean> getIsBufferIdle() { return pIsBufferIdle; }
+
+	public void release() {
+		incomingBytes.release();
+		deserializeData.release();
+		decodeBuffer.release();
+	}
+}
@@ -0,0 +1,196 @@
+package org.push.impl.binary;
+
+import java.nio.ByteBuffer;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.IncomingPacket;
+import org.push.protocol.OutgoingPacket;
+import org.push.protocol.ErrorCodes.SerializeResult;
+import org.push.util.Utils;
+
+/**
+ * The encoder and decoder of a message class for 
+ * {@link BinarySerializer}, the subclasses are generated by 
+ * {@link BinaryCodecProcessor}.
+ * 
+ * A message is the routing id followed by its fields. The integers 
+ * are written as varints, the signed ones zigzag encoded first so the
+ * small negative numbers are short too. A string or a byte array is 
+ * its length plus one followed by the bytes, 0 for null. The message
+ * is written into the buffer directly, its size is counted first so 
+ * the space is reserved once, and nothing is allocated.
+ * 
+ * @author Lei Wang
+ */
+
+public abstract class BinaryCodec<T extends IncomingPacket & OutgoingPacket> {
+
+	private Class<T> messageClass;
+	private int routingId;
+
+	protected BinaryCodec(Class<T> messageClass, int routingId) {
+		Utils.nullArgCheck(messageClass, "messageClass");
+		Utils.unsignedIntArgCheck(routingId, "routingId");
+
+		this.messageClass = messageClass;
+		this.routingId = routingId;
+	}
+
+	public Class<T> getMessageClass() { return messageClass; }
+
+	public int getRoutingId() { return routingId; }
+
+	/**
+	 * Write the message to the end of the buffer.
+	 * 
+	 * @return  InsufficientBufferSpace if the buffer has not enough 
+	 *          space, and nothing is written then
+	 */
+	public SerializeResult encode(T message, Buffer buffer) {
+		int nStart = buffer.getDataSize();
+		if (!buffer.appendSpace(sizeOfVarInt(routingId) + 
+				getBodySize(message))) {
+			return SerializeResult.InsufficientBufferSpace;
+		}
+
+		ByteBuffer view = buffer.getDataView();
+		int pos = putVarInt(view, view.position() + nStart, routingId);
+		writeBody(message, view, pos);
+
+		return SerializeResult.Success;
+	}
+
+	/**
+	 * Read the fields of a new message, the routing id is already read.
+	 * The message is allocated by {@link #newMessage()} for each 
+	 * decoding, it is not recycled.
+	 * 
+	 * @return  the message, or null if the fields are invalid
+	 */
+	public T decode(BinaryReader reader) {
+		T message = newMessage();
+		readBody(message, reader);
+
+		return reader.isFailed() ? null : message;
+	}
+
+	public abstract T newMessage();
+
+	protected abstract int getBodySize(T message);
+
+	/**
+	 * @return  the position after the fields
+	 */
+	protected abstract int writeBody(T message, ByteBuffer view, int pos);
+
+	protected abstract void readBody(T message, BinaryReader reader);
+
+	protected static int sizeOfVarInt(int value) {
+		int nSize = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			nSize ++;
+		}
+		return nSize;
+	}
+
+	protected static int sizeOfVarLong(long value) {
+		int nSize = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			nSize ++;
+		}
+		return nSize;
+	}
+
+	protected static int sizeOfInt(int value) {
+		return sizeOfVarInt((value << 1) ^ (value >> 31));
+	}
+
+	protected static int sizeOfLong(long value) {
+		return sizeOfVarLong((value << 1) ^ (value >> 63));
+	}
+
+	protected static int sizeOfString(String value) {
+		if (value == null) {
+			return 1;
+		}
+
+		int nSize = Utils.putUTF8(null, 0, value);
+		return sizeOfVarInt(nSize + 1) + nSize;
+	}
+
+	protected static int sizeOfBytes(byte[] value) {
+		if (value == null) {
+			return 1;
+		}
+		return sizeOfVarInt(value.length + 1) + value.length;
+	}
+
+	protected static int putVarInt(ByteBuffer view, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			view.put(pos ++, (byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		view.put(pos ++, (byte) value);
+		return pos;
+	}
+
+	protected static int putVarLong(ByteBuffer view, int pos, long value) {
+		while ((value & ~0x7FL) != 0) {
+			view.put(pos ++, (byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		view.put(pos ++, (byte) value);
+		return pos;
+	}
+
+	protected static int putInt(ByteBuffer view, int pos, int value) {
+		return putVarInt(view, pos, (value << 1) ^ (value >> 31));
+	}
+
+	protected static int putLong(ByteBuffer view, int pos, long value) {
+		return putVarLong(view, pos, (value << 1) ^ (value >> 63));
+	}
+
+	protected static int putByte(ByteBuffer view, int pos, byte value) {
+		view.put(pos, value);
+		return pos + 1;
+	}
+
+	protected static int putBoolean(ByteBuffer view, int pos, 
+			boolean value) {
+		view.put(pos, value ? (byte) 1 : (byte) 0);
+		return pos + 1;
+	}
+
+	protected static int putFloat(ByteBuffer view, int pos, float value) {
+		view.putFloat(pos, value);
+		return pos + 4;
+	}
+
+	protected static int putDouble(ByteBuffer view, int pos, double value) {
+		view.putDouble(pos, value);
+		return pos + 8;
+	}
+
+	protected static int putString(ByteBuffer view, int pos, String value) {
+		if (value == null) {
+			return putVarInt(view, pos, 0);
+		}
+
+		pos = putVarInt(view, pos, Utils.putUTF8(null, 0, value) + 1);
+		return Utils.putUTF8(view, pos, value);
+	}
+
+	protected static int putBytes(ByteBuffer view, int pos, byte[] value) {
+		if (value == null) {
+			return putVarInt(view, pos, 0);
+		}
+
+		pos = putVarInt(view, pos, value.length + 1);
+		view.position(pos);
+		view.put(value);
+		return pos + value.length;
+	}
+}
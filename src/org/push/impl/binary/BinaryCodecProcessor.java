@@ -0,0 +1,285 @@
+package org.push.impl.binary;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * The annotation processor which generates the {@link BinaryCodec} of 
+ * each class marked by {@link BinaryMessage}. It is given to javac by
+ * the option <code>-processor org.push.impl.binary.BinaryCodecProcessor
+ * </code> when the message classes are compiled, with this framework
+ * in the class path.
+ * 
+ * The codec of a class <code>Quote</code> is <code>QuoteCodec</code> 
+ * in the same package, for a nested class <code>Outer.Quote</code> it
+ * is <code>Outer_QuoteCodec</code>. The codec reads and writes the 
+ * fields directly, so no reflection is used at runtime.
+ * 
+ * @author Lei Wang
+ */
+
+@SupportedAnnotationTypes("org.push.impl.binary.BinaryMessage")
+public class BinaryCodecProcessor extends AbstractProcessor {
+
+	// The classes by their routing id, to report the duplicates
+	private Map<Integer, String> classesById = new HashMap<Integer, String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations,
+			RoundEnvironment roundEnv) {
+		for (Element element : 
+				roundEnv.getElementsAnnotatedWith(BinaryMessage.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@BinaryMessage is only for classes");
+				continue;
+			}
+
+			TypeElement type = (TypeElement) element;
+			if (checkClass(type)) {
+				generateCodec(type);
+			}
+		}
+		return true;
+	}
+
+	private boolean checkClass(TypeElement type) {
+		boolean isValid = true;
+		Set<Modifier> modifiers = type.getModifiers();
+
+		if (modifiers.contains(Modifier.ABSTRACT) || 
+				modifiers.contains(Modifier.PRIVATE) || 
+				(type.getNestingKind() != NestingKind.TOP_LEVEL && 
+						!modifiers.contains(Modifier.STATIC))) {
+			error(type, "a message must be a concrete top level or " + 
+					"static nested class which is not private");
+			isValid = false;
+		}
+
+		if (!isSubtype(type, "org.push.protocol.IncomingPacket") || 
+				!isSubtype(type, "org.push.protocol.OutgoingPacket")) {
+			error(type, "a message must implement both IncomingPacket " + 
+					"and OutgoingPacket");
+			isValid = false;
+		}
+
+		boolean hasConstructor = false;
+		for (ExecutableElement constructor : 
+				ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && 
+					!constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				hasConstructor = true;
+			}
+		}
+		if (!hasConstructor) {
+			error(type, "a message must have a constructor without " + 
+					"argument which is not private");
+			isValid = false;
+		}
+
+		int routingId = type.getAnnotation(BinaryMessage.class).routingId();
+		if (routingId < 0) {
+			error(type, "invalid routingId:" + routingId);
+			isValid = false;
+		} else {
+			String name = type.getQualifiedName().toString();
+			String other = classesById.put(routingId, name);
+			if (other != null && !other.equals(name)) {
+				error(type, "routingId " + routingId + " is used by " + other);
+				isValid = false;
+			}
+		}
+
+		for (VariableElement field : getFields(type)) {
+			if (field.getModifiers().contains(Modifier.PRIVATE) || 
+					field.getModifiers().contains(Modifier.FINAL)) {
+				error(field, "an encoded field must not be private or final");
+				isValid = false;
+			} else if (getFieldKind(field.asType()) == null) {
+				error(field, "unsupported type of field: " + field.asType());
+				isValid = false;
+			}
+		}
+
+		return isValid;
+	}
+
+	private boolean isSubtype(TypeElement type, String interfaceName) {
+		TypeElement interfaceType = 
+			processingEnv.getElementUtils().getTypeElement(interfaceName);
+		return interfaceType != null && processingEnv.getTypeUtils()
+			.isAssignable(type.asType(), interfaceType.asType());
+	}
+
+	/**
+	 * @return  the fields to encode in the order they are declared
+	 */
+	private static List<VariableElement> getFields(TypeElement type) {
+		List<VariableElement> fields = 
+			ElementFilter.fieldsIn(type.getEnclosedElements());
+		for (int i = fields.size() - 1; i >= 0; i --) {
+			Set<Modifier> modifiers = fields.get(i).getModifiers();
+			if (modifiers.contains(Modifier.STATIC) || 
+					modifiers.contains(Modifier.TRANSIENT)) {
+				fields.remove(i);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @return  the name of the type in the methods of 
+	 *          <code>BinaryCodec</code> and <code>BinaryReader</code>,
+	 *          or null if it is not supported
+	 */
+	private static String getFieldKind(TypeMirror type) {
+		switch (type.getKind()) {
+		case BOOLEAN:
+			return "Boolean";
+		case BYTE:
+			return "Byte";
+		case SHORT:
+		case INT:
+			return "Int";
+		case CHAR:
+			return "VarInt";
+		case LONG:
+			return "Long";
+		case FLOAT:
+			return "Float";
+		case DOUBLE:
+			return "Double";
+		case ARRAY:
+			return ((ArrayType) type).getComponentType().getKind() == 
+				TypeKind.BYTE ? "Bytes" : null;
+		case DECLARED:
+			return "java.lang.String".equals(type.toString()) ? 
+					"String" : null;
+		default:
+			return null;
+		}
+	}
+
+	private void generateCodec(TypeElement type) {
+		String packageName = processingEnv.getElementUtils()
+			.getPackageOf(type).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils()
+			.getBinaryName(type).toString();
+		String codecName = (packageName.length() == 0 ? binaryName : 
+			binaryName.substring(packageName.length() + 1))
+			.replace('$', '_') + "Codec";
+		String className = type.getQualifiedName().toString();
+		int routingId = type.getAnnotation(BinaryMessage.class).routingId();
+		List<VariableElement> fields = getFields(type);
+
+		StringBuilder sb = new StringBuilder();
+		if (packageName.length() > 0) {
+			sb.append("package ").append(packageName).append(";\n\n");
+		}
+		sb.append("import java.nio.ByteBuffer;\n\n");
+		sb.append("import org.push.impl.binary.BinaryCodec;\n");
+		sb.append("import org.push.impl.binary.BinaryReader;\n\n");
+		sb.append("/**\n * Generated by BinaryCodecProcessor from ")
+			.append(className).append(", do not edit.\n */\n");
+		sb.append("public final class ").append(codecName)
+			.append(" extends BinaryCodec<").append(className).append("> {\n\n");
+
+		sb.append("\tpublic ").append(codecName).append("() {\n");
+		sb.append("\t\tsuper(").append(className).append(".class, ")
+			.append(routingId).append(");\n\t}\n\n");
+
+		sb.append("\t@Override\n\tpublic ").append(className)
+			.append(" newMessage() {\n\t\treturn new ").append(className)
+			.append("();\n\t}\n\n");
+
+		sb.append("\t@Override\n\tprotected int getBodySize(")
+			.append(className).append(" message) {\n\t\tint nSize = 0;\n");
+		for (VariableElement field : fields) {
+			String kind = getFieldKind(field.asType());
+			sb.append("\t\tnSize += ");
+			if ("Boolean".equals(kind) || "Byte".equals(kind)) {
+				sb.append("1;\n");
+			} else if ("Float".equals(kind)) {
+				sb.append("4;\n");
+			} else if ("Double".equals(kind)) {
+				sb.append("8;\n");
+			} else {
+				sb.append("sizeOf").append(kind).append("(message.")
+					.append(field.getSimpleName()).append(");\n");
+			}
+		}
+		sb.append("\t\treturn nSize;\n\t}\n\n");
+
+		sb.append("\t@Override\n\tprotected int writeBody(")
+			.append(className)
+			.append(" message, ByteBuffer view, int pos) {\n");
+		for (VariableElement field : fields) {
+			sb.append("\t\tpos = put").append(getFieldKind(field.asType()))
+				.append("(view, pos, message.").append(field.getSimpleName())
+				.append(");\n");
+		}
+		sb.append("\t\treturn pos;\n\t}\n\n");
+
+		sb.append("\t@Override\n\tprotected void readBody(")
+			.append(className).append(" message, BinaryReader reader) {\n");
+		for (VariableElement field : fields) {
+			TypeKind typeKind = field.asType().getKind();
+			sb.append("\t\tmessage.").append(field.getSimpleName())
+				.append(" = ");
+			if (typeKind == TypeKind.SHORT) {
+				sb.append("(short) ");
+			} else if (typeKind == TypeKind.CHAR) {
+				sb.append("(char) ");
+			}
+			sb.append("reader.read").append(getFieldKind(field.asType()))
+				.append("();\n");
+		}
+		sb.append("\t}\n}\n");
+
+		String fileName = packageName.length() == 0 ? codecName : 
+			packageName + "." + codecName;
+		try {
+			Writer writer = processingEnv.getFiler()
+				.createSourceFile(fileName, type).openWriter();
+			try {
+				writer.write(sb.toString());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			error(type, "failed to generate " + fileName + ": " + 
+					e.getMessage());
+		}
+	}
+
+	private void error(Element element, String message) {
+		Messager messager = processingEnv.getMessager();
+		messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
@@ -0,0 +1,32 @@
+package org.push.impl.binary;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a message class to be encoded by {@link BinarySerializer}. 
+ * {@link BinaryCodecProcessor} generates its codec, named after the 
+ * class with the suffix "Codec" in the same package.
+ * 
+ * The fields which are neither static nor transient are encoded in the
+ * order they are declared, they must not be private or final. The types 
+ * supported are the primitive types, <code>String</code> and 
+ * <code>byte[]</code>. The class must implement both 
+ * <code>IncomingPacket</code> and <code>OutgoingPacket</code> and have 
+ * a constructor without argument.
+ * 
+ * @author Lei Wang
+ */
+
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface BinaryMessage {
+
+	/**
+	 * The id written before the fields, the decoded message is routed 
+	 * to the service of this id.
+	 */
+	int routingId();
+}
@@ -0,0 +1,262 @@
+package org.push.impl.binary;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.ErrorCodes.DecodeResult;
+import org.push.protocol.ErrorCodes.EncodeResult;
+import org.push.protocol.Protocol;
+import org.push.protocol.ProtocolContext;
+import org.push.util.CppEnum;
+import org.push.util.Utils;
+
+/**
+ * The protocol which frames each message by its length. The length of
+ * the payload is put before it, either as a 4 bytes big-endian integer
+ * or as a varint of 1 to 5 bytes, 7 bits per byte from the lowest ones
+ * and the highest bit set if more bytes follow.
+ * 
+ * A frame larger than the maximum frame size is refused as soon as its
+ * header is received, so a bad peer could not make the server buffer
+ * a huge frame. The header of a frame is parsed once and kept in the
+ * context until the whole frame is received, and the payload is moved 
+ * to the output by one bulk copy without any temporary array.
+ * 
+ * With the fixed length, the messages are encoded in place, @see 
+ * {@link Protocol#encodeInPlace}.
+ * 
+ * @author Lei Wang
+ */
+
+public class BinaryProtocol extends Protocol {
+
+	/**
+	 * How the length of the payload is encoded.
+	 */
+	public static enum LengthEncoding implements CppEnum {
+
+		Fixed32(1),
+		VarInt(2);
+
+		private int value;
+
+		private LengthEncoding(int value) { this.value = value; }
+
+		public int value() { return value; }
+	}
+
+	private static final int FIXED_HEADER_SIZE = 4;
+	private static final int MAX_VARINT_SIZE = 5;
+
+	private LengthEncoding lengthEncoding;
+
+	// The largest payload accepted
+	private int nMaxFrameSize;
+
+	public BinaryProtocol() {
+		this(LengthEncoding.Fixed32, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param lengthEncoding  how the length is encoded
+	 * @param nMaxFrameSize   the largest payload accepted
+	 */
+	public BinaryProtocol(LengthEncoding lengthEncoding, int nMaxFrameSize) {
+		Utils.nullArgCheck(lengthEncoding, "lengthEncoding");
+		Utils.unsignedIntArgCheck(nMaxFrameSize, "nMaxFrameSize");
+
+		this.lengthEncoding = lengthEncoding;
+		this.nMaxFrameSize = nMaxFrameSize;
+	}
+
+	public LengthEncoding getLengthEncoding() { return lengthEncoding; }
+
+	public int getMaxFrameSize() { return nMaxFrameSize; }
+
+	@Override
+	public ProtocolContext createNewProtocolContext() {
+		return new BinaryProtocolContext();
+	}
+
+	@Override
+	public int getRequiredOutputSize(int maxInputSize) {
+		Utils.unsignedIntArgCheck(maxInputSize, "maxInputSize");
+
+		return maxInputSize + (lengthEncoding == LengthEncoding.Fixed32 ? 
+				FIXED_HEADER_SIZE : MAX_VARINT_SIZE);
+	}
+
+	@Override
+	public boolean isEncodingShareable() {
+		return true;
+	}
+
+	/**
+	 * Only the fixed length has a header of known size.
+	 */
+	@Override
+	public boolean isInPlaceEncodingSupported() {
+		return lengthEncoding == LengthEncoding.Fixed32;
+	}
+
+	@Override
+	public int getHeaderSize() {
+		return FIXED_HEADER_SIZE;
+	}
+
+	@Override
+	public EncodeResult encodeInPlace(ProtocolContext context, 
+			Buffer buffer, int headerOffset, int contentSize) {
+		if (lengthEncoding != LengthEncoding.Fixed32 || 
+				contentSize > nMaxFrameSize) {
+			return EncodeResult.Failure;
+		}
+
+		writeFixedLength(buffer, headerOffset, contentSize);
+		return EncodeResult.Success;
+	}
+
+	@Override
+	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
+		context.setInitialized();
+	}
+
+	@Override
+	public boolean readData(ProtocolContext context, Buffer incomingBytes) {
+		return context.getDataBuffer().append(incomingBytes);
+	}
+
+	@Override
+	public DecodeResult tryDecode(ProtocolContext context, 
+			Buffer outputBuffer) {
+		BinaryProtocolContext binaryContext = (BinaryProtocolContext) context;
+		Buffer inputBuffer = context.getDataBuffer();
+
+		if (!binaryContext.hasFrameHeader()) {
+			DecodeResult result = readHeader(binaryContext, inputBuffer);
+			if (result != DecodeResult.Content) {
+				return result;
+			}
+
+			// The frame could never be held by the buffers
+			int nFrameSize = binaryContext.getFrameSize();
+			if (nFrameSize > outputBuffer.getCapacity() || 
+					binaryContext.getHeaderSize() + nFrameSize > 
+					inputBuffer.getCapacity()) {
+				return DecodeResult.Failure;
+			}
+		}
+
+		int nHeaderSize = binaryContext.getHeaderSize();
+		int nFrameSize = binaryContext.getFrameSize();
+		if (inputBuffer.getDataSize() < nHeaderSize + nFrameSize) {
+			return DecodeResult.WantMoreData;
+		}
+
+		if (!outputBuffer.append(inputBuffer, nHeaderSize, nFrameSize)) {
+			return DecodeResult.Failure;
+		}
+
+		inputBuffer.pop(nHeaderSize + nFrameSize);
+		binaryContext.clearFrame();
+
+		return DecodeResult.Content;
+	}
+
+	@Override
+	public EncodeResult encodeContent(ProtocolContext context,
+			Buffer inputBuffer, Buffer outputBuffer) {
+		int nFrameSize = inputBuffer.getDataSize();
+		if (nFrameSize > nMaxFrameSize) {
+			return EncodeResult.Failure;
+		}
+
+		int nHeaderSize = lengthEncoding == LengthEncoding.Fixed32 ? 
+				FIXED_HEADER_SIZE : getVarIntSize(nFrameSize);
+		if (outputBuffer.getRemainingSize() < nHeaderSize + nFrameSize) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		int nHeaderOffset = outputBuffer.getDataSize();
+		outputBuffer.appendSpace(nHeaderSize);
+		if (lengthEncoding == LengthEncoding.Fixed32) {
+			writeFixedLength(outputBuffer, nHeaderOffset, nFrameSize);
+		} else {
+			writeVarInt(outputBuffer, nHeaderOffset, nFrameSize);
+		}
+		outputBuffer.append(inputBuffer);
+
+		return EncodeResult.Success;
+	}
+
+	/**
+	 * Parse the header at the beginning of the buffer and save it into
+	 * the context.
+	 * 
+	 * @return  Content if the header is parsed, WantMoreData if it is
+	 *          not complete, or Failure if it is invalid or the frame
+	 *          is too large
+	 */
+	private DecodeResult readHeader(BinaryProtocolContext context, 
+			Buffer inputBuffer) {
+		int nAvailable = inputBuffer.getDataSize();
+		long nFrameSize = 0;
+		int nHeaderSize;
+
+		if (lengthEncoding == LengthEncoding.Fixed32) {
+			if (nAvailable < FIXED_HEADER_SIZE) {
+				return DecodeResult.WantMoreData;
+			}
+
+			for (int i = 0; i < FIXED_HEADER_SIZE; i ++) {
+				nFrameSize = (nFrameSize << 8) | (inputBuffer.getAt(i) & 0xFF);
+			}
+			nHeaderSize = FIXED_HEADER_SIZE;
+		} else {
+			int b;
+			nHeaderSize = 0;
+			do {
+				if (nHeaderSize == nAvailable) {
+					return DecodeResult.WantMoreData;
+				}
+				if (nHeaderSize == MAX_VARINT_SIZE) {
+					return DecodeResult.Failure;
+				}
+
+				b = inputBuffer.getAt(nHeaderSize);
+				nFrameSize |= (long) (b & 0x7F) << (7 * nHeaderSize);
+				nHeaderSize ++;
+			} while ((b & 0x80) != 0);
+		}
+
+		if (nFrameSize > nMaxFrameSize) {
+			return DecodeResult.Failure;
+		}
+
+		context.setFrameHeader(nHeaderSize, (int) nFrameSize);
+		return DecodeResult.Content;
+	}
+
+	private static void writeFixedLength(Buffer buffer, int offset, 
+			int length) {
+		buffer.setAt(offset, (byte) (length >>> 24));
+		buffer.setAt(offset + 1, (byte) (length >>> 16));
+		buffer.setAt(offset + 2, (byte) (length >>> 8));
+		buffer.setAt(offset + 3, (byte) length);
+	}
+
+	private static void writeVarInt(Buffer buffer, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.setAt(offset ++, (byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.setAt(offset, (byte) value);
+	}
+
+	private static int getVarIntSize(int value) {
+		int nSize = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			nSize ++;
+		}
+		return nSize;
+	}
+}
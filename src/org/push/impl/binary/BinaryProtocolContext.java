@@ -0,0 +1,47 @@
+package org.push.impl.binary;
+
+import org.push.protocol.ProtocolContext;
+
+/**
+ * The context of {@link BinaryProtocol}. It remembers the header of the
+ * frame being received, so the header is parsed only once however many
+ * reads the frame takes.
+ * 
+ * @author Lei Wang
+ */
+
+public class BinaryProtocolContext extends ProtocolContext {
+
+	// Size of the header and the payload of the frame being received,
+	// -1 if the header is not parsed yet
+	private int nHeaderSize;
+	private int nFrameSize;
+
+	public BinaryProtocolContext() {
+		clearFrame();
+	}
+
+	public int getHeaderSize() { return nHeaderSize; }
+
+	public int getFrameSize() { return nFrameSize; }
+
+	public boolean hasFrameHeader() { return nFrameSize >= 0; }
+
+	public void setFrameHeader(int nHeaderSize, int nFrameSize) {
+		this.nHeaderSize = nHeaderSize;
+		this.nFrameSize = nFrameSize;
+	}
+
+	/**
+	 * Forget the header when the frame is decoded.
+	 */
+	public void clearFrame() {
+		nHeaderSize = -1;
+		nFrameSize = -1;
+	}
+
+	@Override
+	protected void recycle() {
+		clearFrame();
+	}
+}
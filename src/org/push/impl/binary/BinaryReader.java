@@ -0,0 +1,179 @@
+package org.push.impl.binary;
+
+import java.nio.ByteBuffer;
+
+import org.push.util.Utils;
+
+/**
+ * Read the fields written by {@link BinaryCodec}. Reading past the end 
+ * or an invalid length does not throw, the reader is failed and gives 
+ * zero or null for the rest, so the generated decoders check it only 
+ * once at the end.
+ * 
+ * A reader keeps its scratch array between the messages, so each 
+ * thread has its own, @see {@link BinarySerializer}.
+ * 
+ * @author Lei Wang
+ */
+
+public class BinaryReader {
+
+	private ByteBuffer view;
+	private int pos;
+	private int end;
+	private boolean isFailed;
+
+	// To decode the strings
+	private byte[] scratch;
+
+	public BinaryReader() {
+		scratch = new byte[256];
+	}
+
+	/**
+	 * Read from the position to the limit of the view.
+	 */
+	public void reset(ByteBuffer view) {
+		this.view = view;
+		this.pos = view.position();
+		this.end = view.limit();
+		this.isFailed = false;
+	}
+
+	/**
+	 * Forget the view after the message is decoded.
+	 */
+	public void clear() {
+		view = null;
+	}
+
+	public boolean isFailed() { return isFailed; }
+
+	public boolean isAtEnd() { return pos == end; }
+
+	public int readVarInt() {
+		int value = 0;
+		byte b;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!ensure(1)) {
+				return 0;
+			}
+			b = view.get(pos ++);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		return fail();
+	}
+
+	public long readVarLong() {
+		long value = 0;
+		byte b;
+		for (int shift = 0; shift < 70; shift += 7) {
+			if (!ensure(1)) {
+				return 0;
+			}
+			b = view.get(pos ++);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		return fail();
+	}
+
+	public int readInt() {
+		int value = readVarInt();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public long readLong() {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public byte readByte() {
+		return ensure(1) ? view.get(pos ++) : 0;
+	}
+
+	public boolean readBoolean() {
+		return readByte() != 0;
+	}
+
+	public float readFloat() {
+		if (!ensure(4)) {
+			return 0;
+		}
+		float value = view.getFloat(pos);
+		pos += 4;
+		return value;
+	}
+
+	public double readDouble() {
+		if (!ensure(8)) {
+			return 0;
+		}
+		double value = view.getDouble(pos);
+		pos += 8;
+		return value;
+	}
+
+	public String readString() {
+		int nSize = readLength();
+		if (nSize < 0) {
+			return null;
+		}
+
+		if (scratch.length < nSize) {
+			scratch = new byte[Math.max(nSize, scratch.length * 2)];
+		}
+		view.position(pos);
+		view.get(scratch, 0, nSize);
+		pos += nSize;
+
+		return Utils.bytesToString(scratch, nSize);
+	}
+
+	public byte[] readBytes() {
+		int nSize = readLength();
+		if (nSize < 0) {
+			return null;
+		}
+
+		byte[] value = new byte[nSize];
+		view.position(pos);
+		view.get(value);
+		pos += nSize;
+		return value;
+	}
+
+	/**
+	 * @return  the length of a string or byte array, -1 for null or if
+	 *          the reader is failed
+	 */
+	private int readLength() {
+		int nSize = readVarInt() - 1;
+		if (isFailed || nSize < 0) {
+			if (nSize < -1) {
+				fail();
+			}
+			return -1;
+		}
+		return ensure(nSize) ? nSize : -1;
+	}
+
+	private boolean ensure(int nSize) {
+		if (isFailed || end - pos < nSize) {
+			fail();
+			return false;
+		}
+		return true;
+	}
+
+	private int fail() {
+		isFailed = true;
+		pos = end;
+		return 0;
+	}
+}
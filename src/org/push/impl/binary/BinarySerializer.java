@@ -0,0 +1,112 @@
+package org.push.impl.binary;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.DeserializeData;
+import org.push.protocol.IncomingPacket;
+import org.push.protocol.MessageFactory;
+import org.push.protocol.OutgoingPacket;
+import org.push.protocol.ErrorCodes.DeserializeResult;
+import org.push.protocol.ErrorCodes.SerializeResult;
+
+/**
+ * The <code>MessageFactory</code> of the binary messages, each message 
+ * class has its codec generated from {@link BinaryMessage} by 
+ * {@link BinaryCodecProcessor}. The codecs are registered before the
+ * server starts, a received message is decoded by the codec of its 
+ * routing id and routed to the service of that id.
+ * 
+ * @author Lei Wang
+ */
+
+public class BinarySerializer extends MessageFactory {
+
+	private static ThreadLocal<BinaryReader> readers = 
+		new ThreadLocal<BinaryReader>() {
+			@Override
+			protected BinaryReader initialValue() {
+				return new BinaryReader();
+			}
+		};
+
+	private Map<Integer, BinaryCodec<?>> codecsById;
+	private Map<Class<?>, BinaryCodec<?>> codecsByClass;
+
+	public BinarySerializer() {
+		codecsById = new HashMap<Integer, BinaryCodec<?>>();
+		codecsByClass = new HashMap<Class<?>, BinaryCodec<?>>();
+	}
+
+	/**
+	 * Register the codec of a message class, it is not thread-safe and
+	 * should be done before the server starts.
+	 */
+	public void register(BinaryCodec<?> codec) {
+		if (codecsById.containsKey(codec.getRoutingId())) {
+			throw new IllegalArgumentException("duplicate routingId:" + 
+					codec.getRoutingId());
+		}
+
+		codecsById.put(codec.getRoutingId(), codec);
+		codecsByClass.put(codec.getMessageClass(), codec);
+	}
+
+	@Override
+	public SerializeResult serializeMessage(OutgoingPacket outgoingPacket,
+			Buffer buffer) {
+		BinaryCodec<?> codec = codecsByClass.get(outgoingPacket.getClass());
+		if (codec == null) {
+			return SerializeResult.Failure;
+		}
+
+		return encode(codec, outgoingPacket, buffer);
+	}
+
+	private static <T extends IncomingPacket & OutgoingPacket> 
+			SerializeResult encode(BinaryCodec<T> codec, 
+					OutgoingPacket outgoingPacket, Buffer buffer) {
+		return codec.encode(codec.getMessageClass().cast(outgoingPacket), 
+				buffer);
+	}
+
+	@Override
+	public DeserializeResult deserializeMessage(Buffer contentBytes,
+			DeserializeData deserializeData) {
+		if (contentBytes.getDataSize() == 0) {
+			return DeserializeResult.DiscardContent;
+		}
+
+		BinaryReader reader = readers.get();
+		reader.reset(contentBytes.getDataView());
+
+		int routingId = reader.readVarInt();
+		BinaryCodec<?> codec = codecsById.get(routingId);
+		IncomingPacket message = null;
+		if (!reader.isFailed() && codec != null) {
+			message = codec.decode(reader);
+		}
+
+		boolean isDecoded = message != null && reader.isAtEnd();
+		reader.clear();
+		if (!isDecoded) {
+			return DeserializeResult.Failure;
+		}
+
+		deserializeData.setMessage(message);
+		deserializeData.setRoutingService(routingId);
+
+		return DeserializeResult.Success;
+	}
+
+	@Override
+	public void disposeIncomingPacket(IncomingPacket packet) {
+		// Nothing to do
+	}
+
+	@Override
+	public void disposeOutgoingPacket(OutgoingPacket packet) {
+		// Nothing to do
+	}
+}
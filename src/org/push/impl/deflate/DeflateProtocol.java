@@ -0,0 +1,376 @@
+package org.push.impl.deflate;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.ErrorCodes.DecodeResult;
+import org.push.protocol.ErrorCodes.EncodeResult;
+import org.push.protocol.Protocol;
+import org.push.protocol.ProtocolContext;
+import org.push.util.CppEnum;
+import org.push.util.Utils;
+
+/**
+ * The protocol which compresses each message by deflate, it is usually
+ * added below the protocol of the messages and above a framing one,
+ * by {@link Protocol#addLowerProtocolLayer}. Each message is sent in a
+ * frame of a 1 byte flag, the 4 bytes big-endian length and the bytes,
+ * the flag tells whether the bytes are compressed.
+ * 
+ * The messages smaller than the threshold are not compressed, since 
+ * the header of deflate would make them larger. A preset dictionary 
+ * of the strings that the messages often contain, both sides must use
+ * the same one, helps a lot for the small messages.
+ * 
+ * There are two modes:
+ * <ul>
+ * <li>Stateless: each message is compressed alone, so a broadcast 
+ * packet is compressed only once for all the subscribers, @see 
+ * {@link Protocol#isEncodingShareable()}.</li>
+ * <li>Streaming: a connection keeps one deflate stream for all its 
+ * messages, so a message could refer to the previous ones and the 
+ * ratio is better, but the packets have to be compressed for each
+ * connection.</li>
+ * </ul>
+ * 
+ * @author Lei Wang
+ */
+
+public class DeflateProtocol extends Protocol {
+
+	public static enum Mode implements CppEnum {
+
+		Stateless(1),
+		Streaming(2);
+
+		private int value;
+
+		private Mode(int value) { this.value = value; }
+
+		public int value() { return value; }
+	}
+
+	private static final int HEADER_SIZE = 5;
+	private static final byte FLAG_RAW = 0;
+	private static final byte FLAG_DEFLATED = 1;
+
+	private static final int DEFAULT_THRESHOLD = 256;
+
+	private Mode mode;
+	private byte[] dictionary;
+	private int nThreshold;
+	private int nLevel;
+
+	// The largest message accepted, before and after decompression
+	private int nMaxMessageSize;
+
+	public DeflateProtocol() {
+		this(Mode.Stateless, null, DEFAULT_THRESHOLD, 
+				Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param mode             the mode
+	 * @param dictionary       the preset dictionary, null for none
+	 * @param nThreshold       the messages smaller than it are not 
+	 *                         compressed
+	 * @param nLevel           the level of compression, 
+	 *                         @see {@link Deflater#setLevel}
+	 * @param nMaxMessageSize  the largest message accepted
+	 */
+	public DeflateProtocol(Mode mode, byte[] dictionary, int nThreshold, 
+			int nLevel, int nMaxMessageSize) {
+		Utils.nullArgCheck(mode, "mode");
+		Utils.unsignedIntArgCheck(nThreshold, "nThreshold");
+		Utils.unsignedIntArgCheck(nMaxMessageSize, "nMaxMessageSize");
+		if (nLevel != Deflater.DEFAULT_COMPRESSION && 
+				(nLevel < Deflater.NO_COMPRESSION || 
+						nLevel > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("invalid nLevel:" + nLevel);
+		}
+
+		this.mode = mode;
+		this.dictionary = dictionary;
+		this.nThreshold = nThreshold;
+		this.nLevel = nLevel;
+		this.nMaxMessageSize = nMaxMessageSize;
+	}
+
+	public Mode getMode() { return mode; }
+
+	public int getThreshold() { return nThreshold; }
+
+	@Override
+	public ProtocolContext createNewProtocolContext() {
+		return new DeflateProtocolContext();
+	}
+
+	/**
+	 * The bound of deflate for the data which could not be compressed, 
+	 * and the sync marker of the streaming mode.
+	 */
+	@Override
+	public int getRequiredOutputSize(int maxInputSize) {
+		Utils.unsignedIntArgCheck(maxInputSize, "maxInputSize");
+
+		return HEADER_SIZE + maxInputSize + (maxInputSize >> 12) + 
+			(maxInputSize >> 14) + (maxInputSize >> 25) + 18;
+	}
+
+	/**
+	 * Only the stateless mode compresses a message regardless of the 
+	 * connection.
+	 */
+	@Override
+	public boolean isEncodingShareable() {
+		return mode == Mode.Stateless;
+	}
+
+	@Override
+	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
+		context.setInitialized();
+	}
+
+	@Override
+	public boolean readData(ProtocolContext context, Buffer incomingBytes) {
+		return context.getDataBuffer().append(incomingBytes);
+	}
+
+	@Override
+	public DecodeResult tryDecode(ProtocolContext context, 
+			Buffer outputBuffer) {
+		Buffer inputBuffer = context.getDataBuffer();
+		if (inputBuffer.getDataSize() < HEADER_SIZE) {
+			return DecodeResult.WantMoreData;
+		}
+
+		byte flag = inputBuffer.getAt(0);
+		long nFrameSize = 0;
+		for (int i = 1; i < HEADER_SIZE; i ++) {
+			nFrameSize = (nFrameSize << 8) | (inputBuffer.getAt(i) & 0xFF);
+		}
+
+		// The frame could never be held by the buffer
+		if ((flag != FLAG_RAW && flag != FLAG_DEFLATED) || 
+				nFrameSize > nMaxMessageSize || 
+				HEADER_SIZE + nFrameSize > inputBuffer.getCapacity()) {
+			return DecodeResult.Failure;
+		}
+
+		int nSize = (int) nFrameSize;
+		if (inputBuffer.getDataSize() < HEADER_SIZE + nSize) {
+			return DecodeResult.WantMoreData;
+		}
+
+		boolean isDecoded;
+		if (flag == FLAG_RAW) {
+			isDecoded = outputBuffer.append(inputBuffer, HEADER_SIZE, nSize);
+		} else {
+			isDecoded = inflate((DeflateProtocolContext) context, 
+					inputBuffer, nSize, outputBuffer);
+		}
+		inputBuffer.pop(HEADER_SIZE + nSize);
+
+		return isDecoded ? DecodeResult.Content : DecodeResult.Failure;
+	}
+
+	@Override
+	public EncodeResult encodeContent(ProtocolContext context,
+			Buffer inputBuffer, Buffer outputBuffer) {
+		int nSize = inputBuffer.getDataSize();
+		if (nSize > nMaxMessageSize) {
+			return EncodeResult.Failure;
+		}
+
+		int nOffset = outputBuffer.getDataSize();
+		if (!outputBuffer.appendSpace(HEADER_SIZE)) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		byte flag = FLAG_RAW;
+		if (nSize >= nThreshold) {
+			// The stream of the streaming mode could not be rolled back, 
+			// so make sure the output holds the worst case before it
+			if (mode == Mode.Streaming && 
+					outputBuffer.getRemainingSize() < getDeflateBound(nSize)) {
+				outputBuffer.truncate(nOffset);
+				return EncodeResult.InsufficientBufferSpace;
+			}
+
+			if (!deflate((DeflateProtocolContext) context, inputBuffer, 
+					outputBuffer)) {
+				outputBuffer.truncate(nOffset);
+				return mode == Mode.Streaming ? EncodeResult.Failure : 
+					EncodeResult.InsufficientBufferSpace;
+			}
+			flag = FLAG_DEFLATED;
+
+			// The message could not be compressed, the stream of the 
+			// streaming mode has to be kept in step with the peer
+			if (mode == Mode.Stateless && 
+					outputBuffer.getDataSize() - nOffset - HEADER_SIZE >= nSize) {
+				outputBuffer.truncate(nOffset + HEADER_SIZE);
+				flag = FLAG_RAW;
+			}
+		}
+
+		if (flag == FLAG_RAW && !outputBuffer.append(inputBuffer)) {
+			outputBuffer.truncate(nOffset);
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		int nFrameSize = outputBuffer.getDataSize() - nOffset - HEADER_SIZE;
+		outputBuffer.setAt(nOffset, flag);
+		outputBuffer.setAt(nOffset + 1, (byte) (nFrameSize >>> 24));
+		outputBuffer.setAt(nOffset + 2, (byte) (nFrameSize >>> 16));
+		outputBuffer.setAt(nOffset + 3, (byte) (nFrameSize >>> 8));
+		outputBuffer.setAt(nOffset + 4, (byte) nFrameSize);
+
+		return EncodeResult.Success;
+	}
+
+	/**
+	 * The most bytes produced by deflating the given size and flushing,
+	 * as the bound of zlib plus the empty block of a sync flush.
+	 */
+	private static int getDeflateBound(int nSize) {
+		return nSize + (nSize >>> 12) + (nSize >>> 14) + (nSize >>> 25) + 
+			13 + 6;
+	}
+
+	/**
+	 * Compress all the data of the input to the end of the output.
+	 * 
+	 * @return  false if the output is full
+	 */
+	private boolean deflate(DeflateProtocolContext context, 
+			Buffer inputBuffer, Buffer outputBuffer) {
+		Deflater deflater = context.getDeflater(nLevel);
+		if (mode == Mode.Stateless) {
+			deflater.reset();
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+		} else if (!context.isDeflaterPrimed()) {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			context.setDeflaterPrimed();
+		}
+
+		int nSize = inputBuffer.getDataSize();
+		if (inputBuffer.isDirect()) {
+			// Feed the deflater chunk by chunk through the scratch array
+			byte[] inChunk = context.getInChunk();
+			ByteBuffer view = inputBuffer.getDataView();
+			int nChunk;
+			for (int nDone = 0; nDone < nSize; nDone += nChunk) {
+				nChunk = Math.min(inChunk.length, nSize - nDone);
+				view.get(inChunk, 0, nChunk);
+				deflater.setInput(inChunk, 0, nChunk);
+				if (!drainDeflater(context, deflater, Deflater.NO_FLUSH, 
+						outputBuffer)) {
+					return false;
+				}
+			}
+		} else {
+			deflater.setInput(inputBuffer.getBuffer(), 
+					inputBuffer.getOffset(), nSize);
+		}
+
+		if (mode == Mode.Stateless) {
+			deflater.finish();
+			return drainDeflater(context, deflater, Deflater.NO_FLUSH, 
+					outputBuffer);
+		}
+		return drainDeflater(context, deflater, Deflater.SYNC_FLUSH, 
+				outputBuffer);
+	}
+
+	private static boolean drainDeflater(DeflateProtocolContext context, 
+			Deflater deflater, int flush, Buffer outputBuffer) {
+		byte[] outChunk = context.getOutChunk();
+		int nDeflated;
+		do {
+			nDeflated = deflater.deflate(outChunk, 0, outChunk.length, flush);
+			if (!outputBuffer.append(outChunk, nDeflated)) {
+				return false;
+			}
+		} while (nDeflated == outChunk.length || 
+				(!deflater.needsInput() && !deflater.finished()));
+
+		return true;
+	}
+
+	/**
+	 * Decompress the payload of the frame at the beginning of the input
+	 * to the end of the output.
+	 * 
+	 * @return  false if the payload is invalid or the output is too 
+	 *          large
+	 */
+	private boolean inflate(DeflateProtocolContext context, 
+			Buffer inputBuffer, int nSize, Buffer outputBuffer) {
+		Inflater inflater = context.getInflater();
+		if (mode == Mode.Stateless) {
+			inflater.reset();
+		}
+
+		if (inputBuffer.isDirect()) {
+			byte[] inChunk = context.getInChunk();
+			ByteBuffer view = inputBuffer.getDataView();
+			view.position(view.position() + HEADER_SIZE);
+			int nChunk;
+			for (int nDone = 0; nDone < nSize; nDone += nChunk) {
+				nChunk = Math.min(inChunk.length, nSize - nDone);
+				view.get(inChunk, 0, nChunk);
+				inflater.setInput(inChunk, 0, nChunk);
+				if (!drainInflater(context, inflater, outputBuffer)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		inflater.setInput(inputBuffer.getBuffer(), 
+				inputBuffer.getOffset() + HEADER_SIZE, nSize);
+		return drainInflater(context, inflater, outputBuffer);
+	}
+
+	private boolean drainInflater(DeflateProtocolContext context, 
+			Inflater inflater, Buffer outputBuffer) {
+		byte[] outChunk = context.getOutChunk();
+		int nInflated;
+		try {
+			while (!inflater.finished()) {
+				nInflated = inflater.inflate(outChunk);
+				if (nInflated == 0) {
+					if (inflater.needsDictionary()) {
+						if (dictionary == null) {
+							return false;
+						}
+						inflater.setDictionary(dictionary);
+						continue;
+					}
+					if (inflater.needsInput()) {
+						break;
+					}
+				}
+
+				// A small frame must not make a huge message
+				if (outputBuffer.getDataSize() + (long) nInflated > 
+						nMaxMessageSize || 
+						!outputBuffer.append(outChunk, nInflated)) {
+					return false;
+				}
+			}
+		} catch (DataFormatException e) {
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,80 @@
+package org.push.impl.deflate;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.push.protocol.ProtocolContext;
+
+/**
+ * The context of {@link DeflateProtocol}. The <code>Deflater</code> and 
+ * <code>Inflater</code> are created when they are first needed and are
+ * kept with the context, when the context is recycled they are reset 
+ * so the next connection borrowing the context from the pool reuses 
+ * them instead of creating new ones.
+ * 
+ * @author Lei Wang
+ */
+
+public class DeflateProtocolContext extends ProtocolContext {
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	// Whether the preset dictionary is given to the deflater since it 
+	// was reset, only used by the streaming mode
+	private boolean isDeflaterPrimed;
+
+	// Scratch arrays to feed the deflater and inflater and to receive
+	// their output
+	private byte[] inChunk;
+	private byte[] outChunk;
+
+	public DeflateProtocolContext() {
+		isDeflaterPrimed = false;
+	}
+
+	public Deflater getDeflater(int nLevel) {
+		if (deflater == null) {
+			deflater = new Deflater(nLevel);
+		}
+		return deflater;
+	}
+
+	public Inflater getInflater() {
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		return inflater;
+	}
+
+	public boolean isDeflaterPrimed() { return isDeflaterPrimed; }
+
+	public void setDeflaterPrimed() { isDeflaterPrimed = true; }
+
+	public byte[] getInChunk() {
+		if (inChunk == null) {
+			inChunk = new byte[CHUNK_SIZE];
+		}
+		return inChunk;
+	}
+
+	public byte[] getOutChunk() {
+		if (outChunk == null) {
+			outChunk = new byte[CHUNK_SIZE];
+		}
+		return outChunk;
+	}
+
+	@Override
+	protected void recycle() {
+		if (deflater != null) {
+			deflater.reset();
+		}
+		if (inflater != null) {
+			inflater.reset();
+		}
+		isDeflaterPrimed = false;
+	}
+}
@@ -0,0 +1,341 @@
+package org.push.impl.tls;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.ErrorCodes.DecodeResult;
+import org.push.protocol.ErrorCodes.EncodeResult;
+import org.push.protocol.Protocol;
+import org.push.protocol.ProtocolContext;
+import org.push.util.Debug;
+import org.push.util.Utils;
+
+/**
+ * The protocol which encrypts the connection by TLS with 
+ * <code>SSLEngine</code>, it should be the lowest protocol. The server
+ * waits for the client to start the handshake, the handshake bytes are
+ * given back as the protocol bytes and the context is initialized when
+ * the handshake is finished.
+ * 
+ * The records are unwrapped from the received data of the context and
+ * wrapped to the output directly through the NIO views of the pooled 
+ * buffers, so no other buffer is allocated for a connection. The size 
+ * of the buffers is made large enough for a whole record, @see 
+ * {@link #getRequiredOutputSize(int)}.
+ * 
+ * The delegated tasks of the handshake, which are the slow ones like
+ * checking the certificates, could be run by an executor instead of 
+ * the worker. The connection waits without blocking the worker and its
+ * read is resumed when the tasks are done.
+ * 
+ * The sessions are cached by the <code>SSLContext</code>, so a client 
+ * could resume its session and skip the full handshake if the same 
+ * <code>SSLContext</code> is used, @see {@link #setSessionCache}.
+ * 
+ * @author Lei Wang
+ */
+
+public class TLSProtocol extends Protocol {
+
+	// The largest payload of a record, and the largest record
+	private static final int MAX_RECORD_PAYLOAD = 16384;
+	private static final int MAX_RECORD_SIZE = 16384 + 2048;
+
+	// The header, MAC and padding added to each record
+	private static final int RECORD_OVERHEAD = 512;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SSLContext sslContext;
+
+	// To run the delegated tasks, null to run them in the worker
+	private Executor taskExecutor;
+
+	public TLSProtocol(SSLContext sslContext) {
+		this(sslContext, null);
+	}
+
+	/**
+	 * @param sslContext    to create the engines
+	 * @param taskExecutor  to run the delegated tasks of the engines, 
+	 *                      null to run them in the worker
+	 */
+	public TLSProtocol(SSLContext sslContext, Executor taskExecutor) {
+		Utils.nullArgCheck(sslContext, "sslContext");
+
+		this.sslContext = sslContext;
+		this.taskExecutor = taskExecutor;
+	}
+
+	/**
+	 * Set how many sessions the server keeps for the clients to resume
+	 * and how long, it applies to all users of the 
+	 * <code>SSLContext</code>.
+	 * 
+	 * @param nCacheSize       the number of sessions, 0 for no limit
+	 * @param nTimeoutSeconds  seconds a session could be resumed, 0 for 
+	 *                         no limit
+	 */
+	public void setSessionCache(int nCacheSize, int nTimeoutSeconds) {
+		Utils.unsignedIntArgCheck(nCacheSize, "nCacheSize");
+		Utils.unsignedIntArgCheck(nTimeoutSeconds, "nTimeoutSeconds");
+
+		SSLSessionContext sessionContext = 
+			sslContext.getServerSessionContext();
+		sessionContext.setSessionCacheSize(nCacheSize);
+		sessionContext.setSessionTimeout(nTimeoutSeconds);
+	}
+
+	@Override
+	public ProtocolContext createNewProtocolContext() {
+		return new TLSProtocolContext();
+	}
+
+	/**
+	 * Each record adds its overhead, and a buffer must be able to hold
+	 * the largest record.
+	 */
+	@Override
+	public int getRequiredOutputSize(int maxInputSize) {
+		Utils.unsignedIntArgCheck(maxInputSize, "maxInputSize");
+
+		return Math.max(maxInputSize + 
+				(maxInputSize / MAX_RECORD_PAYLOAD + 1) * RECORD_OVERHEAD, 
+				MAX_RECORD_SIZE);
+	}
+
+	/**
+	 * Create the engine of the session, the client sends the first 
+	 * bytes of the handshake.
+	 */
+	@Override
+	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
+		SSLEngine engine = sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		try {
+			engine.beginHandshake();
+		} catch (SSLException e) {
+			Debug.debug("Failed to start TLS handshake: " + e.getMessage());
+			return;
+		}
+
+		((TLSProtocolContext) context).setEngine(engine);
+	}
+
+	@Override
+	public boolean readData(ProtocolContext context, Buffer incomingBytes) {
+		return context.getDataBuffer().append(incomingBytes);
+	}
+
+	@Override
+	public DecodeResult tryDecode(ProtocolContext context, 
+			Buffer outputBuffer) {
+		TLSProtocolContext tlsContext = (TLSProtocolContext) context;
+		SSLEngine engine = tlsContext.getEngine();
+		if (engine == null) {
+			return DecodeResult.Failure;
+		}
+		if (tlsContext.isTaskPending() || tlsContext.isTaskRunning()) {
+			return DecodeResult.WantMoreData;
+		}
+
+		Buffer inputBuffer = context.getDataBuffer();
+		int nStart = outputBuffer.getDataSize();
+		SSLEngineResult result;
+		try {
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					if (taskExecutor != null) {
+						// Started when the worker is done with the engine
+						tlsContext.setTaskPending(true);
+
+						// Send what is wrapped before waiting for the tasks
+						return outputBuffer.getDataSize() > nStart ? 
+								DecodeResult.ProtocolBytes : 
+								DecodeResult.WantMoreData;
+					}
+					runTasks(engine);
+					continue;
+				case NEED_WRAP:
+					result = wrap(engine, EMPTY, outputBuffer);
+					if (result == null) {
+						return DecodeResult.Failure;
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return DecodeResult.Close;
+					}
+					continue;
+				case NOT_HANDSHAKING:
+					if (!context.isInitialized()) {
+						context.setInitialized();
+					}
+
+					// The last bytes of the handshake go before any content
+					if (outputBuffer.getDataSize() > nStart) {
+						return DecodeResult.ProtocolBytes;
+					}
+					break;
+				default:
+					break;
+				}
+
+				if (inputBuffer.getDataSize() == 0) {
+					return outputBuffer.getDataSize() > nStart ? 
+							DecodeResult.ProtocolBytes : 
+							DecodeResult.WantMoreData;
+				}
+
+				result = engine.unwrap(inputBuffer.getDataView(), 
+						outputBuffer.getSpaceView());
+				inputBuffer.pop(result.bytesConsumed());
+				outputBuffer.growSize(result.bytesProduced());
+
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					// The record could never be held by the buffer
+					if (inputBuffer.getRemainingSize() == 0) {
+						return DecodeResult.Failure;
+					}
+					return outputBuffer.getDataSize() > nStart ? 
+							DecodeResult.ProtocolBytes : 
+							DecodeResult.WantMoreData;
+				case BUFFER_OVERFLOW:
+					return DecodeResult.Failure;
+				case CLOSED:
+					// Answer the close_notify of the client
+					engine.closeOutbound();
+					while (!engine.isOutboundDone()) {
+						if (wrap(engine, EMPTY, outputBuffer) == null) {
+							break;
+						}
+					}
+					return DecodeResult.Close;
+				default:
+					break;
+				}
+
+				if (result.bytesProduced() > 0) {
+					return context.isInitialized() ? DecodeResult.Content : 
+						DecodeResult.Failure;
+				}
+			}
+		} catch (SSLException e) {
+			Debug.debug("TLS decoding failed: " + e.getMessage());
+			return DecodeResult.Failure;
+		}
+	}
+
+	@Override
+	public EncodeResult encodeContent(ProtocolContext context,
+			Buffer inputBuffer, Buffer outputBuffer) {
+		SSLEngine engine = ((TLSProtocolContext) context).getEngine();
+		if (engine == null || !context.isInitialized()) {
+			return EncodeResult.Failure;
+		}
+		if (inputBuffer.getDataSize() == 0) {
+			return EncodeResult.Success;
+		}
+
+		// The sequence number of the engine moves on with each record, 
+		// so make sure all the records fit before wrapping any of them
+		int nSize = inputBuffer.getDataSize();
+		if (outputBuffer.getRemainingSize() < 
+				nSize + (nSize / MAX_RECORD_PAYLOAD + 1) * RECORD_OVERHEAD) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		int nStart = outputBuffer.getDataSize();
+		ByteBuffer src = inputBuffer.getDataView();
+		SSLEngineResult result;
+		try {
+			while (src.hasRemaining()) {
+				result = wrap(engine, src, outputBuffer);
+				if (result == null) {
+					// The records already wrapped could not be dropped
+					boolean isWrapped = outputBuffer.getDataSize() > nStart;
+					outputBuffer.truncate(nStart);
+					return isWrapped ? EncodeResult.Failure : 
+						EncodeResult.InsufficientBufferSpace;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					outputBuffer.truncate(nStart);
+					return EncodeResult.Failure;
+				}
+			}
+		} catch (SSLException e) {
+			outputBuffer.truncate(nStart);
+			return EncodeResult.Failure;
+		}
+
+		return EncodeResult.Success;
+	}
+
+	/**
+	 * Wrap the bytes into the free space of the output.
+	 * 
+	 * @return  the result, or null if the output is full
+	 */
+	private static SSLEngineResult wrap(SSLEngine engine, ByteBuffer src, 
+			Buffer outputBuffer) throws SSLException {
+		SSLEngineResult result = engine.wrap(src, 
+				outputBuffer.getSpaceView());
+		outputBuffer.growSize(result.bytesProduced());
+
+		return result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ? 
+				null : result;
+	}
+
+	/**
+	 * Start the delegated tasks left by {@link #tryDecode} in the 
+	 * executor. It is called when the worker suspends the read, so the 
+	 * engine is never used by the worker and the tasks at the same 
+	 * time. The read is resumed once by the tasks when they are done.
+	 * 
+	 * @return  true if the read waits for the tasks
+	 */
+	boolean startDelegatedTasks(final TLSProtocolContext context) {
+		final SSLEngine engine = context.getEngine();
+		if (engine == null || !context.isTaskPending()) {
+			return context.isTaskRunning();
+		}
+
+		context.setTaskPending(false);
+		context.setTaskRunning(true);
+		try {
+			taskExecutor.execute(new Runnable() {
+				public void run() {
+					runTasks(engine);
+					context.setTaskRunning(false);
+
+					// The context may be used by another connection now
+					if (context.getEngine() == engine) {
+						context.resumeRead();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The handshake goes on with the bytes already received
+			runTasks(engine);
+			context.setTaskRunning(false);
+			context.resumeRead();
+		}
+
+		return true;
+	}
+
+	private static void runTasks(SSLEngine engine) {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.push.impl.tls;
+
+import javax.net.ssl.SSLEngine;
+
+import org.push.protocol.ProtocolContext;
+
+/**
+ * The context of {@link TLSProtocol}, it keeps the 
+ * <code>SSLEngine</code> of the connection. The engine could not be 
+ * reused once it is closed, so a new one is created for each session.
+ * 
+ * @author Lei Wang
+ */
+
+public class TLSProtocolContext extends ProtocolContext {
+
+	private volatile SSLEngine engine;
+
+	// Whether the engine has delegated tasks to run in the executor of
+	// the protocol, they are started when the worker suspends the read
+	private volatile boolean isTaskPending;
+
+	// Whether the delegated tasks of the engine are running in the 
+	// executor of the protocol
+	private volatile boolean isTaskRunning;
+
+	public TLSProtocolContext() {
+		isTaskPending = false;
+		isTaskRunning = false;
+	}
+
+	public SSLEngine getEngine() { return engine; }
+
+	public void setEngine(SSLEngine engine) { this.engine = engine; }
+
+	public boolean isTaskPending() { return isTaskPending; }
+
+	public void setTaskPending(boolean isTaskPending) {
+		this.isTaskPending = isTaskPending;
+	}
+
+	public boolean isTaskRunning() { return isTaskRunning; }
+
+	public void setTaskRunning(boolean isTaskRunning) {
+		this.isTaskRunning = isTaskRunning;
+	}
+
+	/**
+	 * The read waits for the delegated tasks, @see 
+	 * {@link TLSProtocol#startDelegatedTasks(TLSProtocolContext)}.
+	 */
+	@Override
+	public boolean suspendRead() {
+		return ((TLSProtocol) getProtocol()).startDelegatedTasks(this);
+	}
+
+	@Override
+	protected void recycle() {
+		engine = null;
+		isTaskPending = false;
+		isTaskRunning = false;
+	}
+}
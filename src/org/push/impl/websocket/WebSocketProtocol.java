@@ -0,0 +1,467 @@
+package org.push.impl.websocket;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.ErrorCodes.DecodeResult;
+import org.push.protocol.ErrorCodes.EncodeResult;
+import org.push.protocol.Protocol;
+import org.push.protocol.ProtocolContext;
+import org.push.util.Utils;
+
+/**
+ * The WebSocket protocol defined by RFC 6455, so the browsers could 
+ * connect to the server directly. It is usually the lowest protocol, 
+ * and the payload of each message is given to the upper protocol or 
+ * the <code>MessageFactory</code> as is.
+ * 
+ * The connection starts with the opening handshake, the HTTP upgrade
+ * request is answered before any frame is decoded. Then:
+ * <ul>
+ * <li>The frames from the client must be masked, they are unmasked in 
+ * place eight bytes at a time.</li>
+ * <li>The fragments of a message are joined in the context until the 
+ * final one is received.</li>
+ * <li>A ping is answered by a pong, a pong is ignored and a close is 
+ * echoed before the connection is closed.</li>
+ * </ul>
+ * The messages to the client are sent unmasked in a single frame, as 
+ * text frames by default.
+ * 
+ * @author Lei Wang
+ */
+
+public class WebSocketProtocol extends Protocol {
+
+	private static final String ACCEPT_GUID = 
+		"258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private static final char[] BASE64_CHARS = 
+		("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz" + 
+				"0123456789+/").toCharArray();
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private static final int MAX_HEADER_SIZE = 10;
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+
+	// Opcode of the frames sent to the client
+	private int outgoingOpcode;
+
+	// The largest message accepted
+	private int nMaxMessageSize;
+
+	public WebSocketProtocol() {
+		this(true, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param isTextFrames     true to send text frames, otherwise binary
+	 * @param nMaxMessageSize  the largest message accepted
+	 */
+	public WebSocketProtocol(boolean isTextFrames, int nMaxMessageSize) {
+		Utils.unsignedIntArgCheck(nMaxMessageSize, "nMaxMessageSize");
+
+		this.outgoingOpcode = isTextFrames ? OPCODE_TEXT : OPCODE_BINARY;
+		this.nMaxMessageSize = nMaxMessageSize;
+	}
+
+	@Override
+	public ProtocolContext createNewProtocolContext() {
+		return new WebSocketProtocolContext();
+	}
+
+	@Override
+	public int getRequiredOutputSize(int maxInputSize) {
+		Utils.unsignedIntArgCheck(maxInputSize, "maxInputSize");
+
+		return maxInputSize + MAX_HEADER_SIZE;
+	}
+
+	@Override
+	public boolean isEncodingShareable() {
+		return true;
+	}
+
+	/**
+	 * The server waits for the upgrade request of the client.
+	 */
+	@Override
+	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
+	}
+
+	@Override
+	public boolean readData(ProtocolContext context, Buffer incomingBytes) {
+		return context.getDataBuffer().append(incomingBytes);
+	}
+
+	@Override
+	public DecodeResult tryDecode(ProtocolContext context, 
+			Buffer outputBuffer) {
+		WebSocketProtocolContext wsContext = 
+			(WebSocketProtocolContext) context;
+		Buffer inputBuffer = context.getDataBuffer();
+
+		if (!context.isInitialized()) {
+			return readHandshake(context, inputBuffer, outputBuffer);
+		}
+
+		int nAvailable = inputBuffer.getDataSize();
+		if (nAvailable < 2) {
+			return DecodeResult.WantMoreData;
+		}
+
+		int b0 = inputBuffer.getAt(0) & 0xFF;
+		int b1 = inputBuffer.getAt(1) & 0xFF;
+		boolean isFinal = (b0 & 0x80) != 0;
+		int opcode = b0 & 0x0F;
+
+		// No extension is negotiated, and the client must mask
+		if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+			return DecodeResult.Failure;
+		}
+
+		long nPayloadSize = b1 & 0x7F;
+		int nHeaderSize = 2;
+		if (nPayloadSize == 126) {
+			nHeaderSize = 4;
+		} else if (nPayloadSize == 127) {
+			nHeaderSize = 10;
+		}
+		if (nAvailable < nHeaderSize) {
+			return DecodeResult.WantMoreData;
+		}
+		if (nHeaderSize > 2) {
+			nPayloadSize = 0;
+			for (int i = 2; i < nHeaderSize; i ++) {
+				nPayloadSize = (nPayloadSize << 8) | 
+					(inputBuffer.getAt(i) & 0xFF);
+			}
+		}
+
+		boolean isControl = (opcode & 0x08) != 0;
+		if (isControl && (!isFinal || nPayloadSize > MAX_CONTROL_PAYLOAD)) {
+			return DecodeResult.Failure;
+		}
+
+		// The frame is too large to be accepted or held by the buffer
+		nHeaderSize += 4;
+		if (nPayloadSize < 0 || nPayloadSize > nMaxMessageSize || 
+				nHeaderSize + nPayloadSize > inputBuffer.getCapacity()) {
+			return DecodeResult.Failure;
+		}
+
+		int nPayload = (int) nPayloadSize;
+		if (nAvailable < nHeaderSize + nPayload) {
+			return DecodeResult.WantMoreData;
+		}
+
+		byte[] maskKey = wsContext.getMaskKey();
+		for (int i = 0; i < 4; i ++) {
+			maskKey[i] = inputBuffer.getAt(nHeaderSize - 4 + i);
+		}
+
+		DecodeResult result;
+		switch (opcode) {
+		case OPCODE_TEXT:
+		case OPCODE_BINARY:
+		case OPCODE_CONTINUATION:
+			result = readDataFrame(wsContext, inputBuffer, nHeaderSize, 
+					nPayload, opcode, isFinal, outputBuffer);
+			break;
+		case OPCODE_PING:
+			// Answer with the same payload
+			result = writeControlFrame(OPCODE_PONG, inputBuffer, 
+					nHeaderSize, nPayload, maskKey, outputBuffer) ? 
+					DecodeResult.ProtocolBytes : DecodeResult.Failure;
+			break;
+		case OPCODE_PONG:
+			result = DecodeResult.NoContent;
+			break;
+		case OPCODE_CLOSE:
+			// Echo the status code, then the connection is closed
+			result = writeControlFrame(OPCODE_CLOSE, inputBuffer, 
+					nHeaderSize, Math.min(nPayload, 2), maskKey, 
+					outputBuffer) ? DecodeResult.Close : DecodeResult.Failure;
+			break;
+		default:
+			result = DecodeResult.Failure;
+			break;
+		}
+
+		inputBuffer.pop(nHeaderSize + nPayload);
+		return result;
+	}
+
+	private DecodeResult readDataFrame(WebSocketProtocolContext context,
+			Buffer inputBuffer, int nHeaderSize, int nPayload, int opcode, 
+			boolean isFinal, Buffer outputBuffer) {
+		boolean isContinuation = opcode == OPCODE_CONTINUATION;
+		if (isContinuation != context.isInMessage()) {
+			return DecodeResult.Failure;
+		}
+
+		// A whole message in one frame goes to the output directly
+		if (isFinal && !isContinuation) {
+			return appendUnmasked(inputBuffer, nHeaderSize, nPayload, 
+					context.getMaskKey(), outputBuffer) ? 
+					DecodeResult.Content : DecodeResult.Failure;
+		}
+
+		Buffer messageBuffer = context.getMessageBuffer();
+		if (messageBuffer.getDataSize() + (long) nPayload > nMaxMessageSize ||
+				!appendUnmasked(inputBuffer, nHeaderSize, nPayload, 
+						context.getMaskKey(), messageBuffer)) {
+			return DecodeResult.Failure;
+		}
+
+		if (!isFinal) {
+			context.setInMessage(true);
+			return DecodeResult.NoContent;
+		}
+
+		context.setInMessage(false);
+		boolean isAppended = outputBuffer.append(messageBuffer);
+		messageBuffer.clearBytes();
+
+		return isAppended ? DecodeResult.Content : DecodeResult.Failure;
+	}
+
+	@Override
+	public EncodeResult encodeContent(ProtocolContext context,
+			Buffer inputBuffer, Buffer outputBuffer) {
+		int nPayload = inputBuffer.getDataSize();
+		if (!appendFrameHeader(outgoingOpcode, nPayload, outputBuffer)) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+		if (!outputBuffer.append(inputBuffer)) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		return EncodeResult.Success;
+	}
+
+	private static boolean writeControlFrame(int opcode, Buffer inputBuffer, 
+			int nPayloadOffset, int nPayload, byte[] maskKey, 
+			Buffer outputBuffer) {
+		return appendFrameHeader(opcode, nPayload, outputBuffer) && 
+			appendUnmasked(inputBuffer, nPayloadOffset, nPayload, maskKey, 
+					outputBuffer);
+	}
+
+	/**
+	 * Append the header of an unmasked final frame.
+	 */
+	private static boolean appendFrameHeader(int opcode, int nPayload, 
+			Buffer outputBuffer) {
+		int nHeaderSize = nPayload <= MAX_CONTROL_PAYLOAD ? 2 : 
+			(nPayload <= 0xFFFF ? 4 : 10);
+		if (outputBuffer.getRemainingSize() < nHeaderSize + nPayload) {
+			return false;
+		}
+
+		int nOffset = outputBuffer.getDataSize();
+		outputBuffer.appendSpace(nHeaderSize);
+		outputBuffer.setAt(nOffset, (byte) (0x80 | opcode));
+		if (nHeaderSize == 2) {
+			outputBuffer.setAt(nOffset + 1, (byte) nPayload);
+		} else if (nHeaderSize == 4) {
+			outputBuffer.setAt(nOffset + 1, (byte) 126);
+			outputBuffer.setAt(nOffset + 2, (byte) (nPayload >>> 8));
+			outputBuffer.setAt(nOffset + 3, (byte) nPayload);
+		} else {
+			outputBuffer.setAt(nOffset + 1, (byte) 127);
+			for (int i = 0; i < 8; i ++) {
+				outputBuffer.setAt(nOffset + 2 + i, 
+						(byte) ((long) nPayload >>> (56 - 8 * i)));
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copy the masked payload to the end of the output and unmask it 
+	 * there.
+	 */
+	private static boolean appendUnmasked(Buffer inputBuffer, int nOffset, 
+			int nPayload, byte[] maskKey, Buffer outputBuffer) {
+		if (!outputBuffer.append(inputBuffer, nOffset, nPayload)) {
+			return false;
+		}
+
+		unmask(outputBuffer, outputBuffer.getDataSize() - nPayload, nPayload,
+				maskKey);
+		return true;
+	}
+
+	/**
+	 * XOR the bytes with the mask key in place, eight bytes at a time
+	 * and then byte by byte for the rest.
+	 * 
+	 * @param buffer   the buffer
+	 * @param nOffset  where the payload starts in the data of buffer
+	 * @param nLength  size of the payload
+	 * @param maskKey  the 4 bytes key, its first byte is for the first 
+	 *                 byte of the payload
+	 */
+	static void unmask(Buffer buffer, int nOffset, int nLength, 
+			byte[] maskKey) {
+		ByteBuffer view = buffer.getDataView();
+		int i = view.position() + nOffset;
+		int nEnd = i + nLength;
+
+		long key = ((maskKey[0] & 0xFFL) << 24) | ((maskKey[1] & 0xFFL) << 16) |
+			((maskKey[2] & 0xFFL) << 8) | (maskKey[3] & 0xFFL);
+		long mask = (key << 32) | key;
+		for (; i + 8 <= nEnd; i += 8) {
+			view.putLong(i, view.getLong(i) ^ mask);
+		}
+
+		// Every 8 bytes the key starts from its first byte again
+		for (int j = 0; i < nEnd; i ++, j ++) {
+			view.put(i, (byte) (view.get(i) ^ maskKey[j & 3]));
+		}
+	}
+
+	/**
+	 * Read the upgrade request of the client and answer it.
+	 * 
+	 * @return  ProtocolBytes with the answer if the handshake succeeds, 
+	 *          Close with an error answer if the request is refused, or 
+	 *          WantMoreData if the request is not complete
+	 */
+	private DecodeResult readHandshake(ProtocolContext context, 
+			Buffer inputBuffer, Buffer outputBuffer) {
+		int nRequestSize = findEndOfHeaders(inputBuffer);
+		if (nRequestSize < 0) {
+			// The request could never be complete
+			return inputBuffer.getRemainingSize() == 0 ? 
+					DecodeResult.Failure : DecodeResult.WantMoreData;
+		}
+
+		String request = Utils.bytesToString(
+				inputBuffer.getBuffer(0, nRequestSize), nRequestSize);
+		inputBuffer.pop(nRequestSize);
+
+		Map<String, String> headers = parseHeaders(request);
+		String response;
+		if (headers == null || 
+				!containsToken(headers.get("upgrade"), "websocket") ||
+				!containsToken(headers.get("connection"), "upgrade") ||
+				headers.get("sec-websocket-key") == null) {
+			response = "HTTP/1.1 400 Bad Request\r\n" + 
+				"Connection: close\r\n\r\n";
+		} else if (!"13".equals(headers.get("sec-websocket-version"))) {
+			response = "HTTP/1.1 426 Upgrade Required\r\n" + 
+				"Sec-WebSocket-Version: 13\r\n" + 
+				"Connection: close\r\n\r\n";
+		} else {
+			String accept = getAcceptKey(headers.get("sec-websocket-key"));
+			if (accept == null) {
+				return DecodeResult.Failure;
+			}
+			response = "HTTP/1.1 101 Switching Protocols\r\n" + 
+				"Upgrade: websocket\r\n" + 
+				"Connection: Upgrade\r\n" + 
+				"Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+			context.setInitialized();
+		}
+
+		if (!outputBuffer.append(Utils.stringToBytes(response))) {
+			return DecodeResult.Failure;
+		}
+
+		return context.isInitialized() ? DecodeResult.ProtocolBytes : 
+			DecodeResult.Close;
+	}
+
+	/**
+	 * @return  size of the request including the empty line, or -1 if
+	 *          the empty line is not received yet
+	 */
+	private static int findEndOfHeaders(Buffer buffer) {
+		int nSize = buffer.getDataSize();
+		for (int i = 3; i < nSize; i ++) {
+			if (buffer.getAt(i) == '\n' && buffer.getAt(i - 1) == '\r' && 
+					buffer.getAt(i - 2) == '\n' && 
+					buffer.getAt(i - 3) == '\r') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return  the headers by the names in lower case, or null if it is
+	 *          not a GET request
+	 */
+	private static Map<String, String> parseHeaders(String request) {
+		String[] lines = request.split("\r\n");
+		if (lines.length == 0 || !lines[0].startsWith("GET ")) {
+			return null;
+		}
+
+		Map<String, String> headers = new HashMap<String, String>();
+		int index;
+		for (int i = 1; i < lines.length; i ++) {
+			index = lines[i].indexOf(':');
+			if (index > 0) {
+				headers.put(lines[i].substring(0, index).trim().toLowerCase(),
+						lines[i].substring(index + 1).trim());
+			}
+		}
+		return headers;
+	}
+
+	private static boolean containsToken(String value, String token) {
+		if (value == null) {
+			return false;
+		}
+
+		for (String item : value.split(",")) {
+			if (item.trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getAcceptKey(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(
+					Utils.stringToBytes(key + ACCEPT_GUID));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int bits;
+		for (int i = 0; i < digest.length; i += 3) {
+			bits = (digest[i] & 0xFF) << 16;
+			if (i + 1 < digest.length) {
+				bits |= (digest[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < digest.length) {
+				bits |= digest[i + 2] & 0xFF;
+			}
+
+			sb.append(BASE64_CHARS[(bits >>> 18) & 0x3F]);
+			sb.append(BASE64_CHARS[(bits >>> 12) & 0x3F]);
+			sb.append(i + 1 < digest.length ? 
+					BASE64_CHARS[(bits >>> 6) & 0x3F] : '=');
+			sb.append(i + 2 < digest.length ? BASE64_CHARS[bits & 0x3F] : '=');
+		}
+		return sb.toString();
+	}
+}
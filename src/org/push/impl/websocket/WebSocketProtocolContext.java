@@ -0,0 +1,57 @@
+package org.push.impl.websocket;
+
+import org.push.protocol.Buffer;
+import org.push.protocol.ProtocolContext;
+import org.push.protocol.RecyclableBuffer;
+
+/**
+ * The context of {@link WebSocketProtocol}. Besides the received bytes
+ * it keeps the fragments of the message being received, in a buffer
+ * which borrows its memory only while a fragmented message is pending.
+ * 
+ * @author Lei Wang
+ */
+
+public class WebSocketProtocolContext extends ProtocolContext {
+
+	// The payload of the fragments received so far
+	private RecyclableBuffer messageBuffer;
+	private boolean isInMessage;
+
+	// Mask key of the frame being decoded
+	private byte[] maskKey;
+
+	public WebSocketProtocolContext() {
+		messageBuffer = new RecyclableBuffer(RecyclableBuffer.Type.Double, 
+				true);
+		isInMessage = false;
+		maskKey = new byte[4];
+	}
+
+	public Buffer getMessageBuffer() { return messageBuffer; }
+
+	/**
+	 * @return  true if some fragments of a message are received but 
+	 *          not the final one
+	 */
+	public boolean isInMessage() { return isInMessage; }
+
+	public void setInMessage(boolean isInMessage) {
+		this.isInMessage = isInMessage;
+	}
+
+	public byte[] getMaskKey() { return maskKey; }
+
+	@Override
+	public void releaseIdleBuffers() {
+		super.releaseIdleBuffers();
+		messageBuffer.releaseIfEmpty();
+	}
+
+	@Override
+	protected void recycle() {
+		messageBuffer.clearBytes();
+		messageBuffer.releaseIfEmpty();
+		isInMessage = false;
+	}
+}
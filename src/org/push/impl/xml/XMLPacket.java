@@ -1,161 +1,204 @@
 package org.push.impl.xml;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.StringReader;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.push.monitor.AnalyticsProtocol;
+import org.push.protocol.Buffer;
 import org.push.protocol.IncomingPacket;
 import org.push.protocol.OutgoingPacket;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.push.protocol.ErrorCodes.SerializeResult;
+import org.push.util.Utils;
 
 /**
  * Packet with XML string as incoming and outgoing packet.
  * 
+ * The packet is the root element, its arguments are the attributes of 
+ * the root element and they are kept in a flat map. The incoming 
+ * packets are parsed from the bytes by {@link XMLPacketParser}, each
+ * thread has its own parser so the packets could be decoded by all the
+ * workers at the same time. The outgoing packets are written to the
+ * buffer as UTF-8 bytes directly, @see {@link #writeTo(Buffer)}.
+ * 
  * @author Lei Wang
  */
 
 public class XMLPacket implements IncomingPacket, OutgoingPacket {
 
-	private static DocumentBuilder documentBuilder;
-	private static Transformer transformer;
-	
-	static {
-		try {
-			documentBuilder = DocumentBuilderFactory.newInstance()
-				.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			throw new RuntimeException(e);
-		}
-		
-		try {
-			transformer = TransformerFactory.newInstance().newTransformer();
-		} catch (TransformerConfigurationException e) {
-			throw new RuntimeException(e);
-		} catch (TransformerFactoryConfigurationError e) {
-			throw new RuntimeException(e);
-		}
-		transformer.setOutputProperty("encoding","UTF-8");
-	}  
+	private static ThreadLocal<XMLPacketParser> parsers = 
+		new ThreadLocal<XMLPacketParser>() {
+			@Override
+			protected XMLPacketParser initialValue() {
+				return new XMLPacketParser();
+			}
+		};
+
+	// The attributes of the root element, in the order they are set
+	private Map<String, String> arguments;
 
-	private Document document;
-	private Element xmlRoot;
 	private String data;
-	private  boolean isXmlFormat;
 
-	public XMLPacket(AnalyticsProtocol typeId) {
-		document = documentBuilder.newDocument();
-	    xmlRoot = document.createElement("root");
-	    document.appendChild(xmlRoot);
+	// Whether the data is given by the caller and sent as is
+	private boolean isRawData;
 
-        xmlRoot.setAttribute("typeId", Integer.toString(typeId.value()));
-        isXmlFormat = true;
+	public XMLPacket(AnalyticsProtocol typeId) {
+		this();
+		arguments.put("typeId", Integer.toString(typeId.value()));
     }
 
+	/**
+	 * Create the packet from the XML built by the caller, it is sent as
+	 * is unless an argument is set. The elements inside the root could
+	 * only be sent this way.
+	 * 
+	 * @param data  the XML of the packet
+	 */
 	public XMLPacket(String data) {
-        isXmlFormat = false;
+		this();
+        this.data = data;
+        this.isRawData = true;
         decode(data);
     }
 
-	public XMLPacket() { }
+	public XMLPacket() {
+		arguments = new LinkedHashMap<String, String>();
+		isRawData = false;
+	}
 
 	public AnalyticsProtocol getTypeId() {
-        if(!xmlRoot.hasAttributes())
-            return null;
-        String val = xmlRoot.getAttribute("typeId");
-        if(val != null) {
-        	int value = Integer.valueOf(val);
-        	return AnalyticsProtocol.get(value);
+        String val = arguments.get("typeId");
+        if (val == null) {
+        	return null;
         }
 
-        return null;
+        try {
+        	return AnalyticsProtocol.get(Integer.parseInt(val));
+        } catch (NumberFormatException e) {
+        	return null;
+        }
     }
 
-
-	public Element getRoot() {
-        return xmlRoot;
+	/**
+	 * Check the packet could be written, it is written straight into 
+	 * the buffer by {@link #writeTo(Buffer)} later.
+	 */
+	public boolean encode() {
+		return isRawData ? data != null : !arguments.isEmpty();
     }
 
-	public boolean encode() {
-        if (!isXmlFormat) {
-            return true;
-        }
+	/**
+	 * Write the packet to the end of the buffer as UTF-8, without any
+	 * temporary string or array. The size is counted first so the space
+	 * is reserved once.
+	 * 
+	 * @param buffer  the buffer
+	 * @return  InsufficientBufferSpace if the buffer has not enough 
+	 *          space, and nothing is written then
+	 */
+	public SerializeResult writeTo(Buffer buffer) {
+		if (!encode()) {
+			return SerializeResult.Failure;
+		}
 
-        if (!xmlRoot.hasAttributes()) {
-            return false;
-        }
-        
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();   
-          
-        try {
-			transformer.transform(new DOMSource(document), new StreamResult(bos));
-		} catch (TransformerException e) {
-			return false;
-		}    
-          
-        data = bos.toString();
+		int nStart = buffer.getDataSize();
+		if (!buffer.appendSpace(write(null, 0))) {
+			return SerializeResult.InsufficientBufferSpace;
+		}
 
-        return true;
-    }
+		ByteBuffer view = buffer.getDataView();
+		write(view, view.position() + nStart);
+
+		return SerializeResult.Success;
+	}
+
+	/**
+	 * Write the packet from the position of the view.
+	 * 
+	 * @param view  the view, null to count the bytes only
+	 * @return  the position after the packet
+	 */
+	private int write(ByteBuffer view, int pos) {
+		if (isRawData) {
+			return writeText(view, pos, data, false);
+		}
 
+		pos = writeText(view, pos, "<root", false);
+		for (Map.Entry<String, String> argument : arguments.entrySet()) {
+			pos = writeText(view, pos, " ", false);
+			pos = writeText(view, pos, argument.getKey(), false);
+			pos = writeText(view, pos, "=\"", false);
+			pos = writeText(view, pos, argument.getValue(), true);
+			pos = writeText(view, pos, "\"", false);
+		}
+		return writeText(view, pos, "/>", false);
+	}
+
+	/**
+	 * Write the text as UTF-8, @see {@link Utils#putUTF8}.
+	 * 
+	 * @param view      the view, null to count the bytes only
+	 * @param pos       where to write in the view
+	 * @param text      the text
+	 * @param isEscaped  whether to replace the special characters of XML
+	 *                  by their entities
+	 * @return  the position after the text
+	 */
+	private static int writeText(ByteBuffer view, int pos, String text, 
+			boolean isEscaped) {
+		if (!isEscaped) {
+			return Utils.putUTF8(view, pos, text);
+		}
 
-	public boolean decode(String data) {
-		Document document = null;
-		try {
-			document = documentBuilder.parse(
-					new InputSource(new StringReader(data)));
-		} catch (SAXException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
+		// The runs between the special characters are written as they are
+		int nLength = text.length();
+		int nRunStart = 0;
+		char c;
+		for (int i = 0; i < nLength; i ++) {
+			c = text.charAt(i);
+			if (c != '&' && c != '<' && c != '>' && c != '"') {
+				continue;
+			}
+
+			pos = Utils.putUTF8(view, pos, text, nRunStart, i);
+			pos = Utils.putUTF8(view, pos, c == '&' ? "&amp;" : 
+				(c == '<' ? "&lt;" : (c == '>' ? "&gt;" : "&quot;")));
+			nRunStart = i + 1;
 		}
+		return Utils.putUTF8(view, pos, text, nRunStart, nLength);
+	}
 
-		if (document == null)
+	public boolean decode(String data) {
+		byte[] bytes = Utils.stringToBytes(data);
+		if (bytes == null) {
 			return false;
+		}
 
-		NodeList nodeList = document.getChildNodes();
-		if (nodeList == null || nodeList.getLength() != 1)
-			return false;
-		
-        Node node = nodeList.item(0);
-        if (node instanceof Element) {
-        	Element xmlRoot = (Element)node;
-        	if ("root".equals(xmlRoot.getNodeName()) && 
-        			xmlRoot.hasAttributes()) {
-                this.xmlRoot = xmlRoot;
-                this.document = document;
-                this.isXmlFormat = true;
-                
-                return true;
-        	}
-        }
-        return false;
+		return decode(ByteBuffer.wrap(bytes));
     }
 
+	/**
+	 * Decode the packet from the data of the buffer, the buffer is not
+	 * changed.
+	 * 
+	 * @param buffer  the buffer
+	 * @return  true if it is a packet with some arguments
+	 */
+	public boolean decode(Buffer buffer) {
+		if (buffer.getDataSize() == 0) {
+			return false;
+		}
+
+		return decode(buffer.getDataView());
+	}
+
+	private boolean decode(ByteBuffer bytes) {
+		arguments.clear();
+		return parsers.get().parse(bytes, arguments);
+	}
 
 	public String getArgumentAsText(String argName) {
-		if (!xmlRoot.hasAttributes()) {
-			return "";
-		}
-        String val = xmlRoot.getAttribute(argName);
+        String val = arguments.get(argName);
         if (val == null) {
             return "";
         }
@@ -170,11 +213,13 @@ public class XMLPacket implements IncomingPacket, OutgoingPacket {
 		return Boolean.parseBoolean(getArgumentAsText(argName));
     }
 
+	/**
+	 * Set the argument, if the packet is created from its XML, it is 
+	 * encoded from the arguments after that.
+	 */
 	public void setArgumentAsText(String argName, String val) {
-        if (!xmlRoot.hasAttributes()) {
-            return;
-        }
-        xmlRoot.setAttribute(argName, val);
+        arguments.put(argName, val);
+        isRawData = false;
     }
 
 	public void setArgumentAsInt(String argName, int val) {
@@ -185,7 +230,20 @@ public class XMLPacket implements IncomingPacket, OutgoingPacket {
         setArgumentAsText(argName, Boolean.toString(val));
     }
 
+	/**
+	 * @return  the XML of the packet, written as {@link #writeTo(Buffer)}
+	 *          does, or null if there is nothing to write
+	 */
 	public String getData() {
-        return data;
+		if (isRawData) {
+			return data;
+		}
+		if (arguments.isEmpty()) {
+			return null;
+		}
+
+		byte[] bytes = new byte[write(null, 0)];
+		write(ByteBuffer.wrap(bytes), 0);
+        return Utils.bytesToString(bytes, bytes.length);
     }
 }
@@ -0,0 +1,336 @@
+package org.push.impl.xml;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.push.util.Utils;
+
+/**
+ * A pull parser which reads the attributes of the root element of a 
+ * packet straight from the UTF-8 bytes, without any DOM or the string 
+ * of the whole packet. The elements inside the root are skipped.
+ * 
+ * A parser keeps its scratch array between the packets, so it is not 
+ * thread-safe and each thread has its own, @see 
+ * {@link XMLPacket#decode(org.push.protocol.Buffer)}.
+ * 
+ * @author Lei Wang
+ */
+
+class XMLPacketParser {
+
+	private static final byte[] ROOT_START = {'<', 'r', 'o', 'o', 't'};
+	private static final byte[] ROOT_END = {'<', '/', 'r', 'o', 'o', 't'};
+
+	private ByteBuffer data;
+	private int pos;
+	private int end;
+
+	// The bytes of the name or value being read, after the entities 
+	// are replaced
+	private byte[] scratch;
+	private int nScratch;
+
+	XMLPacketParser() {
+		scratch = new byte[256];
+	}
+
+	/**
+	 * Parse the packet.
+	 * 
+	 * @param data       the bytes of the packet from its position to
+	 *                   its limit, they are not changed
+	 * @param arguments  to store the attributes of the root element
+	 * @return  false if it is not a root element with some attributes
+	 */
+	boolean parse(ByteBuffer data, Map<String, String> arguments) {
+		this.data = data;
+		this.pos = data.position();
+		this.end = data.limit();
+
+		boolean isParsed = parseRoot(arguments);
+
+		this.data = null;
+		return isParsed && !arguments.isEmpty();
+	}
+
+	private boolean parseRoot(Map<String, String> arguments) {
+		if (!skipMisc() || !startsWith(ROOT_START)) {
+			return false;
+		}
+		pos += ROOT_START.length;
+
+		String name;
+		String value;
+		byte b;
+		while (true) {
+			if (!skipSpaces()) {
+				return false;
+			}
+
+			b = data.get(pos);
+			if (b == '/') {
+				if (pos + 1 >= end || data.get(pos + 1) != '>') {
+					return false;
+				}
+				pos += 2;
+				break;
+			}
+			if (b == '>') {
+				pos ++;
+				if (!skipContent()) {
+					return false;
+				}
+				break;
+			}
+
+			if ((name = readName()) == null || !skipSpaces() || 
+					data.get(pos ++) != '=' || !skipSpaces()) {
+				return false;
+			}
+			if ((value = readValue()) == null) {
+				return false;
+			}
+			arguments.put(name, value);
+		}
+
+		// Nothing but spaces, comments and instructions may follow
+		return !skipMisc();
+	}
+
+	/**
+	 * Skip the elements and text in the root element and its end tag.
+	 */
+	private boolean skipContent() {
+		for (; pos + ROOT_END.length <= end; pos ++) {
+			if (data.get(pos) == '<' && startsWith(ROOT_END)) {
+				pos += ROOT_END.length;
+				if (!skipSpaces() || data.get(pos) != '>') {
+					return false;
+				}
+				pos ++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Skip the spaces, the XML declaration, the instructions and the
+	 * comments.
+	 * 
+	 * @return  false if the end of the data is reached
+	 */
+	private boolean skipMisc() {
+		while (skipSpaces()) {
+			if (data.get(pos) != '<' || pos + 1 >= end) {
+				return true;
+			}
+
+			if (data.get(pos + 1) == '?') {
+				if (!skipPast('?', '>')) {
+					return false;
+				}
+			} else if (data.get(pos + 1) == '!') {
+				if (!skipPast('-', '>')) {
+					return false;
+				}
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean skipPast(char last, char closing) {
+		for (pos += 2; pos + 1 < end; pos ++) {
+			if (data.get(pos) == last && data.get(pos + 1) == closing) {
+				pos += 2;
+				return true;
+			}
+		}
+		pos = end;
+		return false;
+	}
+
+	/**
+	 * @return  false if the end of the data is reached
+	 */
+	private boolean skipSpaces() {
+		byte b;
+		for (; pos < end; pos ++) {
+			b = data.get(pos);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean startsWith(byte[] bytes) {
+		if (end - pos < bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i ++) {
+			if (data.get(pos + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String readName() {
+		int start = pos;
+		byte b;
+		for (; pos < end; pos ++) {
+			b = data.get(pos);
+			if (b == '=' || b == ' ' || b == '\t' || b == '\r' || 
+					b == '\n') {
+				break;
+			}
+			if (b == '<' || b == '>' || b == '/' || b == '"' || b == '\'') {
+				return null;
+			}
+		}
+		if (pos == start || pos == end) {
+			return null;
+		}
+
+		nScratch = 0;
+		for (int i = start; i < pos; i ++) {
+			appendScratch(data.get(i));
+		}
+		return Utils.bytesToString(scratch, nScratch);
+	}
+
+	/**
+	 * Read the quoted value and replace its entities.
+	 */
+	private String readValue() {
+		byte quote = data.get(pos ++);
+		if (quote != '"' && quote != '\'') {
+			return null;
+		}
+
+		nScratch = 0;
+		byte b;
+		while (pos < end) {
+			b = data.get(pos ++);
+			if (b == quote) {
+				return Utils.bytesToString(scratch, nScratch);
+			}
+			if (b == '<') {
+				return null;
+			}
+			if (b == '&') {
+				if (!readEntity()) {
+					return null;
+				}
+			} else {
+				appendScratch(b);
+			}
+		}
+		return null;
+	}
+
+	private boolean readEntity() {
+		int start = pos;
+		while (pos < end && data.get(pos) != ';') {
+			if (pos - start > 10) {
+				return false;
+			}
+			pos ++;
+		}
+		if (pos == end || pos == start) {
+			return false;
+		}
+
+		int nLength = pos - start;
+		pos ++;
+
+		if (data.get(start) == '#') {
+			int codePoint = 0;
+			int radix = 10;
+			int i = start + 1;
+			if (i < start + nLength && (data.get(i) == 'x' || 
+					data.get(i) == 'X')) {
+				radix = 16;
+				i ++;
+			}
+			if (i == start + nLength) {
+				return false;
+			}
+
+			int digit;
+			for (; i < start + nLength; i ++) {
+				digit = Character.digit(data.get(i), radix);
+				if (digit < 0) {
+					return false;
+				}
+				codePoint = codePoint * radix + digit;
+				if (codePoint > Character.MAX_CODE_POINT) {
+					return false;
+				}
+			}
+			appendCodePoint(codePoint);
+			return true;
+		}
+
+		if (isEntity(start, nLength, "lt")) {
+			appendScratch((byte) '<');
+		} else if (isEntity(start, nLength, "gt")) {
+			appendScratch((byte) '>');
+		} else if (isEntity(start, nLength, "amp")) {
+			appendScratch((byte) '&');
+		} else if (isEntity(start, nLength, "quot")) {
+			appendScratch((byte) '"');
+		} else if (isEntity(start, nLength, "apos")) {
+			appendScratch((byte) '\'');
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isEntity(int start, int nLength, String name) {
+		if (nLength != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < nLength; i ++) {
+			if (data.get(start + i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Append the code point in UTF-8.
+	 */
+	private void appendCodePoint(int codePoint) {
+		if (codePoint < 0x80) {
+			appendScratch((byte) codePoint);
+		} else if (codePoint < 0x800) {
+			appendScratch((byte) (0xC0 | (codePoint >> 6)));
+			appendScratch((byte) (0x80 | (codePoint & 0x3F)));
+		} else if (codePoint < 0x10000) {
+			appendScratch((byte) (0xE0 | (codePoint >> 12)));
+			appendScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+			appendScratch((byte) (0x80 | (codePoint & 0x3F)));
+		} else {
+			appendScratch((byte) (0xF0 | (codePoint >> 18)));
+			appendScratch((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+			appendScratch((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+			appendScratch((byte) (0x80 | (codePoint & 0x3F)));
+		}
+	}
+
+	private void appendScratch(byte b) {
+		if (nScratch == scratch.length) {
+			byte[] larger = new byte[scratch.length * 2];
+			System.arraycopy(scratch, 0, larger, 0, nScratch);
+			scratch = larger;
+		}
+		scratch[nScratch ++] = b;
+	}
+}
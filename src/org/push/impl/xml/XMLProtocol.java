@@ -20,6 +20,25 @@ public class XMLProtocol extends Protocol {
 		return new ProtocolContext();
 	}
 
+	@Override
+	public boolean isEncodingShareable() {
+		return true;
+	}
+
+	/**
+	 * There is neither header nor trailer, so nothing to do in place.
+	 */
+	@Override
+	public boolean isInPlaceEncodingSupported() {
+		return true;
+	}
+
+	@Override
+	public EncodeResult encodeInPlace(ProtocolContext context, 
+			Buffer buffer, int headerOffset, int contentSize) {
+		return EncodeResult.Success;
+	}
+
 	@Override
 	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
 		context.setInitialized();
@@ -33,18 +52,25 @@ public class XMLProtocol extends Protocol {
 	@Override
 	public DecodeResult tryDecode(ProtocolContext context, Buffer outputBuffer) {
 		Buffer inputBuffer = context.getDataBuffer();
+		if (!inputBuffer.hasBytes()) {
+			return DecodeResult.WantMoreData;
+		}
+
+		// All the bytes received are one message
+		if (!outputBuffer.append(inputBuffer)) {
+			return DecodeResult.Failure;
+		}
+		inputBuffer.clearBytes();
 
-		return outputBuffer.append(inputBuffer.getBuffer(), 
-				inputBuffer.getDataSize()) ? 
-				DecodeResult.Content : DecodeResult.Failure;
+		return DecodeResult.Content;
 	}
 
 	@Override
 	public EncodeResult encodeContent(ProtocolContext context,
 			Buffer inputBuffer, Buffer outputBuffer) {
-		//Just append an end character:
-		int requiredBytes = inputBuffer.getDataSize() + 1;
-		if (requiredBytes < outputBuffer.getRemainingSize())
+		// The content is sent as is
+		int requiredBytes = inputBuffer.getDataSize();
+		if (requiredBytes > outputBuffer.getRemainingSize())
 		{
 			return EncodeResult.InsufficientBufferSpace;
 		}
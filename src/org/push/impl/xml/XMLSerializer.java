@@ -7,7 +7,6 @@ import org.push.protocol.MessageFactory;
 import org.push.protocol.OutgoingPacket;
 import org.push.protocol.ErrorCodes.DeserializeResult;
 import org.push.protocol.ErrorCodes.SerializeResult;
-import org.push.util.Utils;
 
 /**
  * To serialize the XML packet into binary data and de-serialize
@@ -23,23 +22,7 @@ public class XMLSerializer extends MessageFactory {
 			Buffer buffer) {
 		XMLPacket message = (XMLPacket)outgoingPacket;
 
-		message.encode();
-		
-		String str = message.getData();
-		byte[] data = Utils.stringToBytes(str);
-		
-		if (data == null) {
-			return SerializeResult.Failure;
-		}
-
-		if (buffer.getCapacity() < (data.length + 1))
-		{
-			return SerializeResult.InsufficientBufferSpace; //TODO. Verify this.
-		}
-
-		buffer.append(data, data.length);
-		
-		return SerializeResult.Success;
+		return message.writeTo(buffer);
 	}
 
 	@Override
@@ -49,18 +32,9 @@ public class XMLSerializer extends MessageFactory {
 			return DeserializeResult.DiscardContent;
 		}
 		
-		String str = Utils.bytesToString(contentBytes.getBuffer(), 
-				contentBytes.getDataSize());
-		
-		if (str == null) {
-			return DeserializeResult.Failure;
-		}
-		
-		System.out.println("XML content:\n" + str);
-	 
 		XMLPacket packet = new XMLPacket();
 
-		if (!packet.decode(str)) {
+		if (!packet.decode(contentBytes) || packet.getTypeId() == null) {
 			return DeserializeResult.Failure;
 		}
 		deserializeData.setMessage(packet);
@@ -28,22 +28,14 @@ public class MonitorsMsgFactory extends MessageFactory {
 	public SerializeResult serializeMessage(OutgoingPacket outgoingPacket,
 			Buffer buffer) {
 		XMLPacket response = (XMLPacket) outgoingPacket;
-		if (!response.encode()) {
-			return SerializeResult.Failure;
-		}
-
-		if (!buffer.append(response.getData().getBytes())) {
-			return SerializeResult.InsufficientBufferSpace;
-		}
-
-		return SerializeResult.Success;
+		return response.writeTo(buffer);
 	}
 
 	@Override
 	public DeserializeResult deserializeMessage(Buffer contentBytes,
 			DeserializeData deserializeData) {
 		XMLPacket request = new XMLPacket();
-		if (!request.decode(new String(contentBytes.getBuffer()))) {
+		if (!request.decode(contentBytes) || request.getTypeId() == null) {
 			return DeserializeResult.Failure;
 		}
 
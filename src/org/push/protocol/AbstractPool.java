@@ -1,140 +1,628 @@
 package org.push.protocol;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentMap;
+import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.push.util.Debug;
 import org.push.util.Releasable;
 import org.push.util.Utils;
 
 /**
  * This class provides a skeletal implementation of an object pool.
- * 
+ *
+ * The free objects are kept in a shared lock-free stack. Optionally
+ * each thread could cache some free objects in its own magazine, so
+ * borrowing and returning by the same thread do not touch the shared
+ * stack at all, @see {@link #setMagazineSize(int)}. The objects cached
+ * by a thread are not visible to the other threads, so the pool should
+ * be a bit larger than required when the magazines are used.
+ *
+ * By default the objects in use are tracked so returning an object
+ * twice or returning an object not from the pool is ignored. The
+ * tracking could be disabled for the pools on the hot path,
+ * @see {@link #setInUseTracking(boolean)}
+ *
+ * A large pool could be initialized by several threads, each one 
+ * creates a partition of the objects, @see 
+ * {@link #initialize(int, int, int)}. The objects of a partition are
+ * allocated one after another by the same thread, so they are close to 
+ * each other in the heap and stay together in the free stack.
+ *
+ * To find the objects never returned, the stack of 1 in N borrowings
+ * could be recorded, @see {@link #setLeakDetection(int, long)}, and the
+ * ones held too long are reported by {@link #checkLeaks()}. It only 
+ * suits the pools whose objects are returned shortly, like the buffers.
+ *
  * @author Lei Wang
  */
 
-public abstract class AbstractPool<T> implements Releasable {
-    
+public abstract class AbstractPool<T> implements Releasable, PoolGauges {
+
     // Used as the value of objectsInUse
     private static final Object OBJECT = new Object();
-	
-    // The objects which are being used
+
+    // The objects which are being used, null if not tracked
     private ConcurrentMap<T, Object> objectsInUse;
+
+    // The objects which are still free in the pool, used as a stack so
+    // the object returned lately, which is more likely in the CPU
+    // cache, is borrowed first.
+    private ConcurrentLinkedDeque<T> freeObjects;
     
-    // The objects which are still free in the pool
-    private ConcurrentLinkedQueue<T> freeObjects;
-    
+    /* How many objects in freeObjects, not counting the magazines */
+    private AtomicInteger nSharedFreeObjects;
+
+    /* Maximum objects cached by each thread, 0 means no cache */
+    private int nMagazineSize;
+
+    // The free objects cached by each thread
+    private ThreadLocal<Magazine> magazines;
+
     /* Maximum objects allowed in the pool */
     private int maxAllowed;
-    
+
     /* How many objects in the pool */
     private AtomicInteger objectCount;
 
+    /* How many objects are created and how many borrowings failed */
+    private AtomicLong nCreatedCount;
+    private AtomicLong nExhaustedCount;
+
+    /* Record the stack of 1 in nLeakSampleRate borrowings, 0 disables */
+    private int nLeakSampleRate;
+
+    /* Milliseconds after which a sampled object is reported */
+    private long nLeakThreshold;
+
+    // The sampled objects in use, null if the leak detection is disabled
+    private ConcurrentMap<T, BorrowRecord> sampledBorrows;
+    private AtomicLong nBorrowCount;
+    private volatile int nLeakCount;
+
+    private OccupancyHistogram occupancyHistogram;
+
+    /**
+     * Where and when a sampled object is borrowed.
+     */
+    private static final class BorrowRecord {
+    	private Throwable stack;
+    	private long dtBorrow;
+    	private boolean isReported;
+
+    	BorrowRecord() {
+    		stack = new Throwable("Borrowed here");
+    		dtBorrow = System.currentTimeMillis();
+    		isReported = false;
+    	}
+    }
+
+    /**
+     * Free objects cached by one thread, only accessed by its owner
+     * so there is no synchronization.
+     */
+    private static final class Magazine {
+    	private Object[] objects;
+    	private int count;
+
+    	Magazine(int size) {
+    		objects = new Object[size];
+    		count = 0;
+    	}
+
+    	Object pop() {
+    		if (count == 0) {
+    			return null;
+    		}
+
+    		Object object = objects[-- count];
+    		objects[count] = null;
+    		return object;
+    	}
+
+    	boolean push(Object object) {
+    		if (count == objects.length) {
+    			return false;
+    		}
+
+    		objects[count ++] = object;
+    		return true;
+    	}
+    }
+
     public AbstractPool() {
         objectsInUse = new ConcurrentHashMap<T, Object>();
-        freeObjects = new ConcurrentLinkedQueue<T>();
+        freeObjects = new ConcurrentLinkedDeque<T>();
+        nSharedFreeObjects = new AtomicInteger(0);
+        nMagazineSize = 0;
+        nCreatedCount = new AtomicLong(0);
+        nExhaustedCount = new AtomicLong(0);
+        nBorrowCount = new AtomicLong(0);
+        occupancyHistogram = new OccupancyHistogram();
     }
 
     public void release() {
-        objectsInUse.clear();
+    	if (objectsInUse != null) {
+            objectsInUse.clear();
+    	}
         freeObjects.clear();
+        nSharedFreeObjects.set(0);
+        if (sampledBorrows != null) {
+        	sampledBorrows.clear();
+        }
+        nLeakCount = 0;
+        // The magazines of the other threads are dropped with it
+        if (magazines != null) {
+        	magazines = createMagazines();
+        }
         maxAllowed = 0;
         objectCount = null;
     }
 
+    /**
+     * Enable or disable tracking the objects in use. It must be called
+     * before {@link #initialize(int, int)}.
+     *
+     * @param isEnabled  true to track the objects in use
+     */
+    public synchronized void setInUseTracking(boolean isEnabled) {
+    	checkNotInitialized();
+
+    	if (isEnabled) {
+    		if (objectsInUse == null) {
+    			objectsInUse = new ConcurrentHashMap<T, Object>();
+    		}
+    	} else {
+    		objectsInUse = null;
+    	}
+    }
+
+    /**
+     * Set how many free objects could be cached by each thread. It must
+     * be called before {@link #initialize(int, int)}.
+     *
+     * @param nMagazineSize  maximum objects cached per thread, 0 to
+     *                       disable the cache
+     */
+    public synchronized void setMagazineSize(int nMagazineSize) {
+    	Utils.unsignedIntArgCheck(nMagazineSize, "nMagazineSize");
+    	checkNotInitialized();
+
+    	this.nMagazineSize = nMagazineSize;
+    	this.magazines = nMagazineSize > 0 ? createMagazines() : null;
+    }
+
+    /**
+     * Enable or disable the leak detection. It must be called before 
+     * {@link #initialize(int, int)}.
+     *
+     * @param nSampleRate  record the stack of 1 in nSampleRate 
+     *                     borrowings, 0 to disable
+     * @param nThreshold   milliseconds after which a sampled object 
+     *                     not returned is reported
+     */
+    public synchronized void setLeakDetection(int nSampleRate, 
+    		long nThreshold) {
+    	Utils.unsignedIntArgCheck(nSampleRate, "nSampleRate");
+    	if (nThreshold < 0) {
+    		throw new IllegalArgumentException("nThreshold is negative");
+    	}
+    	checkNotInitialized();
+
+    	this.nLeakSampleRate = nSampleRate;
+    	this.nLeakThreshold = nThreshold;
+    	this.sampledBorrows = nSampleRate > 0 ? 
+    			new ConcurrentHashMap<T, BorrowRecord>() : null;
+    }
+
+    private void checkNotInitialized() {
+    	if (objectCount != null) {
+    		throw new IllegalStateException("The pool is already initialized");
+    	}
+    }
+
+    private ThreadLocal<Magazine> createMagazines() {
+    	return new ThreadLocal<Magazine>() {
+    		@Override
+    		protected Magazine initialValue() {
+    			return new Magazine(nMagazineSize);
+    		}
+    	};
+    }
+
     /**
      * Initialize the pool to create some objects within the pool.
-     * 
+     *
      * @param nRequiredObjects  How many objects are created
      * @param maxAllowed        Maximum objects are allowed
      * @return  true if the initialization is finished without error.
      */
-    public synchronized boolean initialize(int nRequiredObjects, 
-    		int maxAllowed) {
+    public boolean initialize(int nRequiredObjects, int maxAllowed) {
+    	return initialize(nRequiredObjects, maxAllowed, 1);
+    }
+
+    /**
+     * Initialize the pool to create some objects within the pool by 
+     * several threads. {@link #createImpl()} must be thread safe if more
+     * than one thread is used.
+     *
+     * @param nRequiredObjects  How many objects are created
+     * @param maxAllowed        Maximum objects are allowed
+     * @param nThreads          How many threads create the objects
+     * @return  true if the initialization is finished without error.
+     */
+    public synchronized boolean initialize(int nRequiredObjects,
+    		int maxAllowed, int nThreads) {
     	// Already initialized
-    	if (objectCount != null || maxAllowed != 0) {
+    	if (objectCount != null || this.maxAllowed != 0) {
     		return false;
     	}
 
     	Utils.unsignedIntArgCheck(nRequiredObjects, "nRequiredObjects");
     	Utils.unsignedIntArgCheck(maxAllowed, "maxAllowed");
-    	
+
     	if (maxAllowed < nRequiredObjects) {
     		throw new IllegalArgumentException(
     				"'maxAllowed' could not be less than 'nRequiredObjects'");
     	}
-    	
+
     	this.objectCount = new AtomicInteger(nRequiredObjects);
     	this.maxAllowed = maxAllowed;
 
+    	if (nThreads > 1 && nRequiredObjects >= nThreads) {
+    		return createInParallel(nRequiredObjects, nThreads);
+    	}
+
         try {
             for (int i = 0; i < nRequiredObjects; i ++) {
-                freeObjects.add(createImpl());
+                freeObjects.addFirst(create());
+                nSharedFreeObjects.incrementAndGet();
             }
         } catch (Exception ex) {
         	ex.printStackTrace();
             return false;
         }
-        
+
         return true;
     }
 
+    @SuppressWarnings("unchecked")
+	private boolean createInParallel(int nRequiredObjects, int nThreads) {
+    	final Object[][] partitions = new Object[nThreads][];
+    	Runnable[] tasks = new Runnable[nThreads];
+    	for (int i = 0; i < nThreads; i ++) {
+    		final Object[] objects = new Object[nRequiredObjects / nThreads +
+    		    (i < nRequiredObjects % nThreads ? 1 : 0)];
+    		partitions[i] = objects;
+    		tasks[i] = new Runnable() {
+    			public void run() {
+    				for (int j = 0; j < objects.length; j ++) {
+    					objects[j] = create();
+    				}
+    			}
+    		};
+    	}
+
+    	if (!Utils.runInParallel(tasks, "PoolInit")) {
+    		return false;
+    	}
+
+    	// The threads are joined, so their objects are visible here
+    	for (Object[] objects : partitions) {
+    		for (Object object : objects) {
+    			if (object == null) {
+    				return false;
+    			}
+    			freeObjects.addFirst((T) object);
+    			nSharedFreeObjects.incrementAndGet();
+    		}
+    	}
+
+    	return true;
+    }
+
+    /**
+     * Create more free objects in the pool, within the maximum allowed.
+     *
+     * @param nObjects  how many objects to create
+     * @return  how many objects are created
+     */
+    public int grow(int nObjects) {
+    	Utils.unsignedIntArgCheck(nObjects, "nObjects");
+
+    	int nCreated = 0;
+    	T object;
+    	while (nCreated < nObjects) {
+    		if (objectCount.getAndIncrement() >= maxAllowed) {
+    			objectCount.decrementAndGet();
+    			break;
+    		}
+
+    		object = create();
+    		if (object == null) {
+    			objectCount.decrementAndGet();
+    			break;
+    		}
+
+    		freeObjects.addFirst(object);
+    		nSharedFreeObjects.incrementAndGet();
+    		nCreated ++;
+    	}
+
+    	return nCreated;
+    }
+
+    /**
+     * Delete the free objects which are not used lately, until there
+     * are at most the given count of free objects. The objects cached
+     * by the threads are kept.
+     *
+     * @param nMaxFreeObjects  how many free objects to keep
+     * @return  how many objects are deleted
+     */
+    public int shrink(int nMaxFreeObjects) {
+    	Utils.unsignedIntArgCheck(nMaxFreeObjects, "nMaxFreeObjects");
+
+    	int nDeleted = 0;
+    	T object;
+    	while (nSharedFreeObjects.get() > nMaxFreeObjects) {
+    		// The tail is the one returned earliest
+    		object = freeObjects.pollLast();
+    		if (object == null) {
+    			break;
+    		}
+
+    		nSharedFreeObjects.decrementAndGet();
+    		objectCount.decrementAndGet();
+    		deleteImpl(object);
+    		nDeleted ++;
+    	}
+
+    	return nDeleted;
+    }
+
+    /**
+     * @return  how many objects are created by the pool and not deleted
+     */
+    public int getObjectCount() {
+    	AtomicInteger count = objectCount;
+    	return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return  how many free objects are in the shared stack, not 
+     *          counting the ones cached by the threads
+     */
+    public int getSharedFreeCount() {
+    	return nSharedFreeObjects.get();
+    }
+
+    /**
+     * @return  maximum objects allowed in the pool
+     */
+    public int getMaxAllowed() {
+    	return maxAllowed;
+    }
+
     /**
      * Borrow an object from the pool. If there is no
      * free object, null will be returned.
-     * 
+     *
      * @return an available object or null
      */
     public T borrowObject() {
-		T object = freeObjects.poll();
+    	return borrow(true, true);
+    }
+
+    /**
+     * Borrow a free object from the pool, no object is created even if
+     * the maximum is not reached. If there is no free object, null will
+     * be returned and it is not counted as exhausted.
+     *
+     * @return a free object or null
+     */
+    public T borrowFreeObject() {
+    	return borrow(true, false);
+    }
+
+    /**
+     * Borrow a free object from the shared stack only, neither the 
+     * magazine of current thread is looked up nor any object is created.
+     * It is cheap enough to probe the pools other than the one current
+     * thread usually borrows from.
+     *
+     * @return a free object or null
+     */
+    public T borrowSharedObject() {
+    	return borrow(false, false);
+    }
+
+    @SuppressWarnings("unchecked")
+	private T borrow(boolean isCached, boolean isCreating) {
+    	T object = null;
+
+    	// First from the cache of current thread
+    	if (isCached && magazines != null) {
+    		object = (T) magazines.get().pop();
+    	}
+
+    	if (object == null) {
+    		object = freeObjects.pollFirst();
+    		if (object != null) {
+    			nSharedFreeObjects.decrementAndGet();
+    		}
+    	}
 
 		if (object == null) {
+			if (!isCreating) {
+				return null;
+			}
+
 			if (objectCount.getAndIncrement() < maxAllowed) {
-				object = createImpl();
-			} else {
+				object = create();
+			}
+			
+			if (object == null) {
 				objectCount.decrementAndGet(); //recover
+				nExhaustedCount.incrementAndGet();
+				return null;
 			}
         }
-		
+
 		// Add into in use list if there is an available
-		if (object != null) {
+		if (objectsInUse != null) {
 			objectsInUse.put(object, OBJECT);
 		}
 
+		if (sampledBorrows != null && 
+				nBorrowCount.incrementAndGet() % nLeakSampleRate == 0) {
+			sampledBorrows.put(object, new BorrowRecord());
+		}
+
 		return object;
     }
 
     /**
      * Return the object to the pool.
-     * 
+     *
      * @param object The object returned to the pool
      */
     public void returnObject(T object) {
+    	returnObject(object, true);
+    }
+
+    /**
+     * Return the object to the pool. An object which would not be
+     * borrowed again by current thread, for example one borrowed from
+     * the pool of another thread, should not be cached in the magazine
+     * of current thread, or it is stranded there.
+     *
+     * @param object    The object returned to the pool
+     * @param isCaching false to put it into the shared stack directly
+     */
+    public void returnObject(T object, boolean isCaching) {
     	if (object == null) {
     		return;
     	}
 
-		Object value = objectsInUse.remove(object);
-        
-        if (value != null) {
-            freeObjects.add(object);
-            recycleObject(object);
+    	if (objectsInUse != null && objectsInUse.remove(object) == null) {
+    		return;
+    	}
+
+    	if (sampledBorrows != null) {
+    		sampledBorrows.remove(object);
+    	}
+
+    	// Recycle before it could be borrowed by the others
+        recycleObject(object);
+
+        if (!isCaching || magazines == null || 
+        		!magazines.get().push(object)) {
+            freeObjects.addFirst(object);
+            nSharedFreeObjects.incrementAndGet();
         }
     }
-    
+
+    private T create() {
+    	T object = createImpl();
+    	if (object != null) {
+    		nCreatedCount.incrementAndGet();
+    	}
+    	return object;
+    }
+
+    /**
+     * The objects cached by the threads are not counted.
+     */
+    public int getFreeCount() {
+    	return nSharedFreeObjects.get();
+    }
+
+    /**
+     * If the objects in use are not tracked, the objects cached by the
+     * threads are counted as in use.
+     */
+    public int getInUseCount() {
+    	ConcurrentMap<T, Object> inUse = objectsInUse;
+    	if (inUse != null) {
+    		return inUse.size();
+    	}
+    	return Math.max(0, getObjectCount() - nSharedFreeObjects.get());
+    }
+
+    public long getCreatedCount() {
+    	return nCreatedCount.get();
+    }
+
+    public long getExhaustedCount() {
+    	return nExhaustedCount.get();
+    }
+
+    public int getLeakCount() {
+    	return nLeakCount;
+    }
+
+    public OccupancyHistogram getOccupancyHistogram() {
+    	return occupancyHistogram;
+    }
+
+    public void sampleOccupancy() {
+    	occupancyHistogram.addSample(getInUseCount(), getObjectCount());
+    }
+
+    /**
+     * Each sampled object is reported once, with the stack where it
+     * was borrowed.
+     */
+    public int checkLeaks() {
+    	if (sampledBorrows == null) {
+    		return 0;
+    	}
+
+    	long now = System.currentTimeMillis();
+    	int nLeaks = 0;
+    	BorrowRecord record;
+    	for (Entry<T, BorrowRecord> entry : sampledBorrows.entrySet()) {
+    		record = entry.getValue();
+    		if (now - record.dtBorrow < nLeakThreshold) {
+    			continue;
+    		}
+
+    		nLeaks ++;
+    		if (!record.isReported) {
+    			record.isReported = true;
+    			if (Debug.isEnabled()) {
+    				StringWriter stack = new StringWriter();
+    				record.stack.printStackTrace(new PrintWriter(stack));
+    				Debug.debug("Possible leak in " + 
+    						getClass().getSimpleName() + ": " + 
+    						entry.getKey() + " is not returned after " + 
+    						(now - record.dtBorrow) + " ms, " + stack);
+    			}
+    		}
+    	}
+
+    	nLeakCount = nLeaks;
+    	return nLeaks;
+    }
+
     /**
      * This is a C++ style method, usually use the "delete"
      * to free the memory space by the pointer.
      * In Java, this method may be removed in the later version.
-     * 
+     *
      * @param object  The object used
      */
 	protected abstract void deleteImpl(T object);
-	
+
 	/**
 	 * Create the object used in the pool
-	 * 
+	 *
 	 * @return  the object created
 	 */
 	protected abstract T createImpl();
@@ -142,7 +630,7 @@ public abstract class AbstractPool<T> implements Releasable {
 	/**
 	 * Recycle the object when this object is returned to
 	 * the pool.
-	 * 
+	 *
 	 * @param object  The object returned to the pool
 	 */
 	protected abstract void recycleObject(T object);
@@ -1,24 +1,45 @@
 package org.push.protocol;
 
+import java.nio.ByteBuffer;
+
 import org.push.util.Releasable;
 import org.push.util.Utils;
 
 /**
  * This class holds a line of memory and keeps track of its data.
  * 
+ * The data starts at {@link #getOffset()} of the memory, so removing 
+ * the bytes from the head by {@link #pop(int)} only moves the read 
+ * index. The data is moved back to the beginning only when the space 
+ * at the tail is not enough for the bytes to append.
+ * 
+ * The memory is either a byte array on the heap or a direct 
+ * <code>ByteBuffer</code> off the heap, all the operations work on both.
+ * Only {@link #getBuffer()} is limited to the heap memory.
+ * 
  * @author Lei Wang
  */
 
 public class Buffer implements Releasable {
 
 	protected byte[] buf;
+	protected ByteBuffer directBuf; // used instead of buf if off the heap
+	protected int offset; // read index, the data ends at offset + size
 	protected int size;
 	protected int maxSize;
 	protected boolean ownsBuffer;
+	
+	// NIO view of the memory, created on demand for the socket I/O
+	private ByteBuffer view;
+	
+	// Another view of directBuf to copy the bytes by relative operations
+	private ByteBuffer directWork;
 
     public Buffer() {
 		buf = null;
+		directBuf = null;
 		maxSize = 0;
+		offset = 0;
 		size = 0;
 		ownsBuffer = false;
     }
@@ -27,8 +48,12 @@ public class Buffer implements Releasable {
         Utils.unsignedIntArgCheck(size, "size");
 
 		buf = new byte[size];
+		directBuf = null;
 		maxSize = size;
+		offset = 0;
 		ownsBuffer = true;
+		view = null;
+		directWork = null;
     }
 
 	public void assign(byte[] buf) {
@@ -43,24 +68,61 @@ public class Buffer implements Releasable {
         Utils.unsignedIntArgCheck(size, "size");
 
 		this.buf = buf;
+		this.directBuf = null;
         
         if (buf == null) {
             this.maxSize = 0;
         } else {
             this.maxSize = buf.length;
         }
+		this.offset = 0;
 		this.size = size;
 		this.ownsBuffer = false;
+		this.view = null;
+		this.directWork = null;
     }
 
+	/**
+	 * Use a direct <code>ByteBuffer</code> as the memory, the whole 
+	 * capacity of it is used regardless of its position and limit.
+	 * 
+	 * @param directBuf  the memory off the heap
+	 * @param size       size of the data at the beginning
+	 */
+	public void assign(ByteBuffer directBuf, int size) {
+        Utils.nullArgCheck(directBuf, "directBuf");
+        Utils.unsignedIntArgCheck(size, "size");
+        
+        this.buf = null;
+        this.directBuf = directBuf;
+        this.maxSize = directBuf.capacity();
+		this.offset = 0;
+		this.size = size;
+		this.ownsBuffer = false;
+		this.view = null;
+		this.directWork = null;
+	}
+
 	public void assign(Buffer srcBuffer) {
-		assign(srcBuffer.getBuffer(), srcBuffer.getCapacity(), srcBuffer.getDataSize());
+		assign(srcBuffer, srcBuffer.getDataSize());
     }
 
 	public void assign(Buffer srcBuffer, int size) {
-		assign(srcBuffer.getBuffer(), srcBuffer.getCapacity(), size);
+		if (srcBuffer.isDirect()) {
+			assign(srcBuffer.directBuf, size);
+		} else {
+			assign(srcBuffer.getBuffer(), srcBuffer.getCapacity(), size);
+		}
+		this.offset = srcBuffer.getOffset();
     }
 
+	/**
+	 * @return  true if the memory is off the heap
+	 */
+	public boolean isDirect() {
+		return directBuf != null;
+	}
+
 	public int getRemainingSize() {
 		return maxSize - size;
     }
@@ -80,11 +142,22 @@ public class Buffer implements Releasable {
 			return true;
         }
 
-		if (getRemainingSize() < size) {
+		if (getRemainingSize() < size && !reserve(size)) {
 			return false;
         }
-
-		System.arraycopy(buf, offset, this.buf, this.size, size);
+		
+		if (maxSize - this.offset - this.size < size) {
+			compact();
+		}
+
+		if (directBuf == null) {
+			System.arraycopy(buf, offset, this.buf, this.offset + this.size, 
+					size);
+		} else {
+			ByteBuffer work = getDirectWork(this.offset + this.size, 
+					maxSize);
+			work.put(buf, offset, size);
+		}
 
 		this.size = this.size + size;
 		return true;
@@ -95,9 +168,55 @@ public class Buffer implements Releasable {
     }
 
 	public boolean append(Buffer srcBuffer) {
-		return append(srcBuffer.getBuffer(), srcBuffer.getDataSize());
+		return append(srcBuffer, 0, srcBuffer.getDataSize());
     }
 
+	/**
+	 * Append a part of the data of another buffer.
+	 * 
+	 * @param srcBuffer  the source
+	 * @param offset     position of the part, relative to the read index
+	 *                   of the source
+	 * @param size       size of the part
+	 * @return  false if there is not enough space
+	 */
+	public boolean append(Buffer srcBuffer, int offset, int size) {
+        Utils.unsignedIntArgCheck(offset, "offset");
+        Utils.unsignedIntArgCheck(size, "size");
+        
+        if (offset + size > srcBuffer.getDataSize()) {
+        	throw new IllegalArgumentException("invalid size:" + size);
+        }
+        
+		if (!srcBuffer.isDirect()) {
+			return append(srcBuffer.getBuffer(), 
+					srcBuffer.getOffset() + offset, size);
+		}
+		
+		if (size == 0) {
+			return true;
+		}
+		
+		if (getRemainingSize() < size && !reserve(size)) {
+			return false;
+		}
+		
+		if (maxSize - this.offset - this.size < size) {
+			compact();
+		}
+		
+		int srcStart = srcBuffer.getOffset() + offset;
+		ByteBuffer src = srcBuffer.getDirectWork(srcStart, srcStart + size);
+		if (directBuf == null) {
+			src.get(buf, this.offset + this.size, size);
+		} else {
+			getDirectWork(this.offset + this.size, maxSize).put(src);
+		}
+		
+		this.size = this.size + size;
+		return true;
+	}
+
 	public int getDataSize() {
 		return size;
     }
@@ -106,10 +225,36 @@ public class Buffer implements Releasable {
 		return maxSize;
     }
 
+	/**
+	 * Get the memory of this buffer, the data starts at 
+	 * {@link #getOffset()}.
+	 * 
+	 * @return  the memory, or null if the memory is off the heap
+	 */
 	public byte[] getBuffer() {
         return buf;
     }
 
+	/**
+	 * Get the read index, which is the position of the first byte
+	 * of the data in {@link #getBuffer()}
+	 * 
+	 * @return  the read index
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the write index, which is the position after the last byte
+	 * of the data in {@link #getBuffer()}
+	 * 
+	 * @return  the write index
+	 */
+	public int getWriteOffset() {
+		return offset + size;
+	}
+
 	public byte[] getBuffer(int offset) {
         if (offset >= size) {
         	throw new IllegalArgumentException("invalid offset:" + offset);
@@ -130,22 +275,199 @@ public class Buffer implements Releasable {
         byte[] ret = new byte[length];
         
         int copyLenth = Math.min(length, size - offset);
-        System.arraycopy(buf, offset, ret, 0, copyLenth);        
+        if (directBuf == null) {
+            System.arraycopy(buf, this.offset + offset, ret, 0, copyLenth);
+        } else {
+        	int start = this.offset + offset;
+        	getDirectWork(start, start + copyLenth).get(ret, 0, copyLenth);
+        }
         
         return ret;
     }
 
+	/**
+	 * Get a NIO view of the data in this buffer, it shares the memory
+	 * with this buffer so no byte is copied. The view is only valid
+	 * until the next call on this buffer.
+	 * 
+	 * @return  the view whose remaining bytes are the data
+	 */
+	public ByteBuffer getDataView() {
+		ByteBuffer view = getView();
+		view.limit(offset + size).position(offset);
+		return view;
+	}
+
+	/**
+	 * Get a NIO view of the free space of this buffer, the bytes put
+	 * into the view are part of this buffer after calling 
+	 * {@link #growSize(int)}.
+	 * 
+	 * @return  the view whose remaining space is the free space
+	 */
+	public ByteBuffer getSpaceView() {
+		if (offset > 0) {
+			compact();
+		}
+
+		ByteBuffer view = getView();
+		view.limit(maxSize).position(size);
+		return view;
+	}
+
+	private ByteBuffer getView() {
+		if (view == null) {
+			view = createView();
+		}
+		view.clear();
+		return view;
+	}
+
+	/**
+	 * Called when there is not enough space to append the bytes, the
+	 * subclasses could allocate the memory on demand here.
+	 * 
+	 * @param size  how many bytes to append
+	 * @return  true if there is enough space now
+	 */
+	protected boolean reserve(int size) {
+		return false;
+	}
+
+	/**
+	 * Decode the data as a string by the charset of {@link Utils}.
+	 * 
+	 * @return  the string, or null if the data could not be decoded
+	 */
+	public String getDataAsString() {
+		if (directBuf == null) {
+			return Utils.bytesToString(buf, offset, size);
+		}
+		return Utils.bytesToString(getBuffer(0, size), size);
+	}
+
+	/**
+	 * Create a new NIO view of the whole memory.
+	 * 
+	 * @return  the view
+	 */
+	protected ByteBuffer createView() {
+		return directBuf == null ? ByteBuffer.wrap(buf, 0, maxSize) : 
+			directBuf.duplicate();
+	}
+
+	private ByteBuffer getDirectWork(int position, int limit) {
+		if (directWork == null) {
+			directWork = directBuf.duplicate();
+		}
+		directWork.clear();
+		directWork.position(position);
+		directWork.limit(limit);
+		return directWork;
+	}
+
 	public byte[] getPosition() {
         return null;
 		//return buf + size;
     }
 
+	/**
+	 * Get a byte of the data.
+	 * 
+	 * @param offset  the position relative to the read index
+	 * @return  the byte
+	 */
 	public byte getAt(int offset) {
         Utils.unsignedIntArgCheck(offset, "offset");
         
-		return buf[offset];
+		if (directBuf == null) {
+			return buf[this.offset + offset];
+		}
+		return directBuf.get(this.offset + offset);
     }
 
+	/**
+	 * Overwrite a byte of the data.
+	 * 
+	 * @param offset  the position relative to the read index
+	 * @param value   the new byte
+	 */
+	public void setAt(int offset, byte value) {
+        Utils.unsignedIntArgCheck(offset, "offset");
+        
+        if (offset >= size) {
+        	throw new IndexOutOfBoundsException("offset:" + offset);
+        }
+        
+		if (directBuf == null) {
+			buf[this.offset + offset] = value;
+		} else {
+			directBuf.put(this.offset + offset, value);
+		}
+	}
+
+	/**
+	 * Overwrite a part of the data, usually to fill the space appended
+	 * by {@link #appendSpace(int)}.
+	 * 
+	 * @param offset     the position relative to the read index
+	 * @param src        the new bytes
+	 * @param srcOffset  position of the new bytes in src
+	 * @param length     how many bytes to write
+	 */
+	public void put(int offset, byte[] src, int srcOffset, int length) {
+        Utils.unsignedIntArgCheck(offset, "offset");
+        Utils.unsignedIntArgCheck(length, "length");
+        
+        if (offset + length > size) {
+        	throw new IndexOutOfBoundsException("offset:" + offset + 
+        			", length:" + length);
+        }
+        
+        if (directBuf == null) {
+        	System.arraycopy(src, srcOffset, buf, this.offset + offset, 
+        			length);
+        } else {
+        	int start = this.offset + offset;
+        	getDirectWork(start, start + length).put(src, srcOffset, length);
+        }
+	}
+
+	/**
+	 * Append some space to the data, its content is written later by 
+	 * {@link #put(int, byte[], int, int)} or {@link #setAt(int, byte)}.
+	 * 
+	 * @param size  how many bytes to append
+	 * @return  false if there is not enough space
+	 */
+	public boolean appendSpace(int size) {
+        Utils.unsignedIntArgCheck(size, "size");
+        
+		if (getRemainingSize() < size && !reserve(size)) {
+			return false;
+        }
+		
+		if (maxSize - this.offset - this.size < size) {
+			compact();
+		}
+		
+		this.size = this.size + size;
+		return true;
+	}
+
+	/**
+	 * Drop the data after the given size.
+	 * 
+	 * @param size  how many bytes of the data are kept
+	 */
+	public void truncate(int size) {
+        Utils.unsignedIntArgCheck(size, "size");
+        
+        if (size < this.size) {
+        	this.size = size;
+        }
+	}
+
 	public void growSize(int growBy) {
         Utils.unsignedIntArgCheck(growBy, "growBy");
         
@@ -160,10 +482,33 @@ public class Buffer implements Releasable {
         }
 
 		this.size = this.size - size;
-		System.arraycopy(buf, size, buf, 0, this.size);
+		if (this.size == 0) {
+			this.offset = 0;
+		} else {
+			this.offset = this.offset + size;
+		}
     }
 
+	/**
+	 * Move the data to the beginning of the memory.
+	 */
+	protected void compact() {
+		if (offset == 0) {
+			return;
+		}
+
+		if (size > 0) {
+			if (directBuf == null) {
+				System.arraycopy(buf, offset, buf, 0, size);
+			} else {
+				getDirectWork(offset, offset + size).compact();
+			}
+		}
+		offset = 0;
+	}
+
 	public void clearBytes() {
+		offset = 0;
 		size = 0;
     }
 
@@ -175,6 +520,11 @@ public class Buffer implements Releasable {
 		return size > 0;
     }
 
+	/**
+	 * Set the size of the data, it is relative to the read index.
+	 * 
+	 * @param size  the size of the data
+	 */
 	public void setPosition(int size) {
 		this.size = size;
     }
@@ -1,63 +1,396 @@
 package org.push.protocol;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.push.protocol.RecyclableBuffer.Type;
+import org.push.util.Debug;
 import org.push.util.Releasable;
 import org.push.util.Utils;
 
 /**
- * A pool to store lots of <code>MemorySegment</code>. Here uses singleton 
+ * A pool to store lots of <code>MemorySegment</code>. Here uses singleton
  * pattern so you could use {@link #getDefaultPool} to get the instance.
- * 
- * By default the pool is empty. So before use it, method {@link #create}
- * must be called to create the <code>MemorySegment</code> by type.
- * 
+ *
+ * The segments are grouped by size classes, the size of each class is
+ * a power of two from 64 bytes to 1M bytes. A request is served by the
+ * smallest class which is large enough. Each class is split into several
+ * arenas, one per core by default, and a thread always borrows from the
+ * same arena first so the threads seldom contend on the same pool. The
+ * free segments of a few other arenas are taken before a new segment is
+ * created or the class is reported exhausted.
+ *
+ * Before use it, method {@link #create} must be called to declare the
+ * size of each {@link Type} and how many segments are reserved for it.
+ * The reserved segments are created in advance. When they are used up
+ * more segments are created on demand, within the memory limit set by
+ * {@link #setMaxBytes(long)}, and the free segments above the reserved
+ * count are deleted by {@link #trim()}.
+ *
+ * Each type could be declared off the heap, then its segments are direct
+ * <code>ByteBuffer</code> which the socket reads and writes without the
+ * extra copy made by the JDK for the heap memory. The segments on and off
+ * the heap are kept in separated size classes.
+ *
  * @author Lei Wang
  */
 
-public class BufferPool implements Releasable {
-    
+public class BufferPool implements Releasable, PoolGauges {
+
+	/* The sizes of the classes are from 2^MIN_CLASS_SHIFT to
+	 * 2^MAX_CLASS_SHIFT */
+	private static final int MIN_CLASS_SHIFT = 6;
+	private static final int MAX_CLASS_SHIFT = 20;
+	private static final int CLASS_COUNT =
+		MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+	/* How many sibling arenas are probed when the home arena is empty */
+	private static final int MAX_SIBLING_PROBES = 4;
+
     private static final BufferPool defaultPool = new BufferPool();
-	
-    private ConcurrentMap<Type, SegmentPool> segmentsBySize;
-    
+
+    // Size of the segment of each type
+    private ConcurrentMap<Type, Integer> sizeByType;
+
+    // The types whose segments are off the heap
+    private ConcurrentMap<Type, Boolean> directByType;
+
+    // Size classes on the heap and off the heap
+    private SizeClasses heapClasses;
+    private SizeClasses directClasses;
+
+    private int nArenas;
+
+    // Bytes of all the segments created
+    private AtomicLong allocatedBytes;
+
+    /* Maximum bytes of all the segments, 0 means no limit */
+    private long nMaxBytes;
+
+    /* Settings of the arenas created later, @see AbstractPool */
+    private int nMagazineSize;
+    private boolean isInUseTracking = true;
+
+    /* How many threads create the reserved segments */
+    private int nInitThreads = 1;
+
+    /* Leak detection of the arenas created later, @see AbstractPool */
+    private int nLeakSampleRate;
+    private long nLeakThreshold;
+
+    private OccupancyHistogram occupancyHistogram;
+
+    /**
+     * All the size classes of the segments either on or off the heap.
+     */
+    private final class SizeClasses {
+
+        // Arenas of each size class, created on first use
+        private AtomicReferenceArray<SegmentPool[]> arenasByClass;
+
+        // Segments reserved for each size class
+        private AtomicIntegerArray reservedByClass;
+
+        // How many times no segment could be given for each size class
+        private AtomicLongArray exhaustedByClass;
+
+        private boolean isDirect;
+
+        SizeClasses(boolean isDirect) {
+            arenasByClass = new AtomicReferenceArray<SegmentPool[]>(
+            		CLASS_COUNT);
+            reservedByClass = new AtomicIntegerArray(CLASS_COUNT);
+            exhaustedByClass = new AtomicLongArray(CLASS_COUNT);
+            this.isDirect = isDirect;
+        }
+
+    	SegmentPool[] getArenas(int sizeClass) {
+    		SegmentPool[] arenas = arenasByClass.get(sizeClass);
+    		if (arenas != null) {
+    			return arenas;
+    		}
+
+    		synchronized (arenasByClass) {
+    			arenas = arenasByClass.get(sizeClass);
+    			if (arenas == null) {
+    				int nSize = 1 << (sizeClass + MIN_CLASS_SHIFT);
+    				arenas = new SegmentPool[nArenas];
+    				for (int i = 0; i < nArenas; i ++) {
+    					arenas[i] = new SegmentPool(nSize, allocatedBytes,
+    							nMaxBytes, isDirect);
+    					arenas[i].setArena(i, nArenas);
+    					arenas[i].setMagazineSize(nMagazineSize);
+    					arenas[i].setInUseTracking(isInUseTracking);
+    					arenas[i].setLeakDetection(nLeakSampleRate, 
+    							nLeakThreshold);
+    					arenas[i].initialize(0, Integer.MAX_VALUE);
+    				}
+    				arenasByClass.set(sizeClass, arenas);
+    			}
+    		}
+
+    		return arenas;
+    	}
+
+    	long trim() {
+    		long nFreedBytes = 0;
+    		for (int i = 0; i < CLASS_COUNT; i ++) {
+    			SegmentPool[] arenas = arenasByClass.get(i);
+    			if (arenas == null) {
+    				continue;
+    			}
+
+    			int nReserved = reservedByClass.get(i);
+    			for (int j = 0; j < arenas.length; j ++) {
+    				int nKept = nReserved / arenas.length +
+    					(j < nReserved % arenas.length ? 1 : 0);
+    				nFreedBytes += (long) arenas[j].shrink(nKept) *
+    					arenas[j].getSegmentSize();
+    			}
+    		}
+
+    		return nFreedBytes;
+    	}
+
+    	void addArenasTo(List<SegmentPool> list) {
+    		for (int i = 0; i < CLASS_COUNT; i ++) {
+    			SegmentPool[] arenas = arenasByClass.get(i);
+    			if (arenas != null) {
+    				for (SegmentPool arena : arenas) {
+    					list.add(arena);
+    				}
+    			}
+    		}
+    	}
+
+    	long getExhaustedCount() {
+    		long nTotal = 0;
+    		for (int i = 0; i < CLASS_COUNT; i ++) {
+    			nTotal += exhaustedByClass.get(i);
+    		}
+    		return nTotal;
+    	}
+
+    	void release() {
+    		for (int i = 0; i < CLASS_COUNT; i ++) {
+    			SegmentPool[] arenas = arenasByClass.getAndSet(i, null);
+    			if (arenas != null) {
+    				for (SegmentPool arena : arenas) {
+    					arena.release();
+    				}
+    			}
+    			reservedByClass.set(i, 0);
+    			exhaustedByClass.set(i, 0);
+    		}
+    	}
+    }
+
     public static BufferPool getDefaultPool() { return defaultPool; }
-    
+
 	private BufferPool() {
-        segmentsBySize = new ConcurrentHashMap<Type, SegmentPool>();
+        sizeByType = new ConcurrentHashMap<Type, Integer>();
+        directByType = new ConcurrentHashMap<Type, Boolean>();
+        heapClasses = new SizeClasses(false);
+        directClasses = new SizeClasses(true);
+        allocatedBytes = new AtomicLong(0);
+        nArenas = Runtime.getRuntime().availableProcessors();
+        occupancyHistogram = new OccupancyHistogram();
     }
 
 	/**
-	 * Create some <code>MemorySegment</code> for the given {@link Type}. 
-	 * If the type already exists, false will be returned.
+	 * Set how many segments of each type could be cached by each thread,
+	 * it affects the arenas created later.
+	 * @see AbstractPool#setMagazineSize(int)
+	 * @param nMagazineSize  0 to disable the cache
+	 */
+	public void setMagazineSize(int nMagazineSize) {
+        Utils.unsignedIntArgCheck(nMagazineSize, "nMagazineSize");
+		this.nMagazineSize = nMagazineSize;
+	}
+
+	/**
+	 * Enable or disable tracking the segments in use, it affects the
+	 * arenas created later.
+	 * @see AbstractPool#setInUseTracking(boolean)
+	 * @param isEnabled  true to track the segments in use
+	 */
+	public void setInUseTracking(boolean isEnabled) {
+		this.isInUseTracking = isEnabled;
+	}
+
+	/**
+	 * Enable or disable the leak detection, it affects the arenas 
+	 * created later.
+	 * @see AbstractPool#setLeakDetection(int, long)
+	 * @param nSampleRate  record the stack of 1 in nSampleRate 
+	 *                     borrowings, 0 to disable
+	 * @param nThreshold   milliseconds after which a sampled segment 
+	 *                     not returned is reported
+	 */
+	public void setLeakDetection(int nSampleRate, long nThreshold) {
+        Utils.unsignedIntArgCheck(nSampleRate, "nSampleRate");
+        if (nThreshold < 0) {
+        	throw new IllegalArgumentException("nThreshold is negative");
+        }
+		this.nLeakSampleRate = nSampleRate;
+		this.nLeakThreshold = nThreshold;
+	}
+
+	/**
+	 * Set how many arenas for each size class, it affects the arenas
+	 * created later.
+	 * @param nArenas  count of arenas, at least 1
+	 */
+	public void setArenasCount(int nArenas) {
+		if (nArenas < 1) {
+			throw new IllegalArgumentException("nArenas must be positive");
+		}
+		this.nArenas = nArenas;
+	}
+
+	/**
+	 * Set how many threads create the reserved segments in 
+	 * {@link #create(Type, int, int, boolean)}, the arenas of a size 
+	 * class are shared out among the threads.
+	 * @param nInitThreads  count of threads, at least 1
+	 */
+	public void setInitThreads(int nInitThreads) {
+		if (nInitThreads < 1) {
+			throw new IllegalArgumentException("nInitThreads must be positive");
+		}
+		this.nInitThreads = nInitThreads;
+	}
+
+	/**
+	 * Limit the memory of all the segments, no more segment is created
+	 * when the limit is reached.
+	 * @param nMaxBytes  the limit in bytes, 0 means no limit
+	 */
+	public void setMaxBytes(long nMaxBytes) {
+		if (nMaxBytes < 0) {
+			throw new IllegalArgumentException("nMaxBytes is negative");
+		}
+		this.nMaxBytes = nMaxBytes;
+	}
+
+	/**
+	 * Declare the size of the <code>MemorySegment</code> for the given
+	 * {@link Type} and create some of them in advance. If the type
+	 * already exists, false will be returned.
 	 * @param type   @see {@link Type}
-	 * @param nCount how many <code>MemorySegment</code> to create
+	 * @param nCount how many <code>MemorySegment</code> are reserved
 	 * @param nSize  the size of the buffer created
 	 * @return true if the buffers are created, otherwise false
 	 */
 	public boolean create(Type type, int nCount, int nSize) {
+		return create(type, nCount, nSize, false);
+	}
+
+	/**
+	 * Declare the size of the <code>MemorySegment</code> for the given
+	 * {@link Type} and create some of them in advance. If the type
+	 * already exists, false will be returned.
+	 * @param type     @see {@link Type}
+	 * @param nCount   how many <code>MemorySegment</code> are reserved
+	 * @param nSize    the size of the buffer created
+	 * @param isDirect true if the segments are off the heap
+	 * @return true if the buffers are created, otherwise false
+	 */
+	public boolean create(Type type, int nCount, int nSize, 
+			boolean isDirect) {
 		Utils.nullArgCheck(type, "type");
         Utils.unsignedIntArgCheck(nCount, "nCount");
         Utils.unsignedIntArgCheck(nSize, "nSize");
-        
+
         // The type already exists, return false
-        if (segmentsBySize.containsKey(type)) {
+        if (sizeByType.putIfAbsent(type, Integer.valueOf(nSize)) != null) {
         	return false;
         }
+        directByType.put(type, Boolean.valueOf(isDirect));
 
-		SegmentPool segPool = new SegmentPool(nSize);
+        int sizeClass = getSizeClass(nSize);
+        if (sizeClass < 0) {
+        	// Too large to be pooled, allocated when required
+        	return true;
+        }
+
+        SizeClasses classes = getSizeClasses(isDirect);
+        classes.reservedByClass.addAndGet(sizeClass, nCount);
+
+        // Share out the reserved segments among the arenas
+        final SegmentPool[] arenas = classes.getArenas(sizeClass);
+        final int[] arenaCounts = new int[arenas.length];
+        for (int i = 0; i < arenas.length; i ++) {
+        	arenaCounts[i] = nCount / arenas.length +
+        		(i < nCount % arenas.length ? 1 : 0);
+        }
 
-		if (!segPool.initialize(nCount, nCount)) {
-			return false;
+        int nThreads = Math.min(nInitThreads, arenas.length);
+        if (nThreads <= 1) {
+        	return growArenas(arenas, arenaCounts, 0, 1);
         }
 
-		segmentsBySize.put(type, segPool);
+        final boolean[] results = new boolean[nThreads];
+        Runnable[] tasks = new Runnable[nThreads];
+        for (int i = 0; i < nThreads; i ++) {
+        	final int nFirst = i;
+        	final int nStep = nThreads;
+        	tasks[i] = new Runnable() {
+        		public void run() {
+        			results[nFirst] = growArenas(arenas, arenaCounts, 
+        					nFirst, nStep);
+        		}
+        	};
+        }
+
+        if (!Utils.runInParallel(tasks, "BufferPoolInit")) {
+        	return false;
+        }
+        for (boolean result : results) {
+        	if (!result) {
+        		return false;
+        	}
+        }
 
 		return true;
     }
 
+	private static boolean growArenas(SegmentPool[] arenas, 
+			int[] arenaCounts, int nFirst, int nStep) {
+		for (int i = nFirst; i < arenas.length; i += nStep) {
+			if (arenas[i].grow(arenaCounts[i]) < arenaCounts[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the size of the segment of the given type.
+	 * @param type  @see {@link Type}
+	 * @return  the size, or 0 if the type does not exist
+	 */
+	public int getSize(Type type) {
+		Integer size = sizeByType.get(type);
+		return size == null ? 0 : size.intValue();
+	}
+
+	/**
+	 * @param type  @see {@link Type}
+	 * @return  true if the segments of the type are off the heap
+	 */
+	public boolean isDirect(Type type) {
+		Boolean isDirect = directByType.get(type);
+		return isDirect != null && isDirect.booleanValue();
+	}
+
 	/**
 	 * Get a <code>MemorySegment</code> of the given {@link Type}
 	 * If the type does not exist or no <code>MemorySegment</code>
@@ -66,30 +399,222 @@ public class BufferPool implements Releasable {
 	 * @return  A <code>MemorySegment</code> or null
 	 */
 	public MemorySegment getMemorySegment(Type type) {
-        SegmentPool segPool = segmentsBySize.get(type);
-        if (segPool == null) {
+        Integer size = sizeByType.get(type);
+        if (size == null) {
             throw new NullPointerException("Type '" + type + "' not found");
-        } else {
-            return segPool.borrowObject();
         }
+
+        return getMemorySegment(size.intValue(), isDirect(type));
+    }
+
+	/**
+	 * Get a <code>MemorySegment</code> on the heap at least as large as 
+	 * the given size. If no <code>MemorySegment</code> is available, 
+	 * null will be returned.
+	 * @param nSize  the minimum size
+	 * @return  A <code>MemorySegment</code> or null
+	 */
+	public MemorySegment getMemorySegment(int nSize) {
+		return getMemorySegment(nSize, false);
+	}
+
+	/**
+	 * Get a <code>MemorySegment</code> at least as large as the given
+	 * size. If no <code>MemorySegment</code> is available, null will be
+	 * returned.
+	 * @param nSize     the minimum size
+	 * @param isDirect  true if the segment is off the heap
+	 * @return  A <code>MemorySegment</code> or null
+	 */
+	public MemorySegment getMemorySegment(int nSize, boolean isDirect) {
+        Utils.unsignedIntArgCheck(nSize, "nSize");
+
+        int sizeClass = getSizeClass(nSize);
+        if (sizeClass < 0) {
+        	return isDirect ? 
+        			new MemorySegment(ByteBuffer.allocateDirect(nSize), null) :
+        			new MemorySegment(nSize);
+        }
+
+        SizeClasses classes = getSizeClasses(isDirect);
+        SegmentPool[] arenas = classes.getArenas(sizeClass);
+        int index = (int) (Thread.currentThread().getId() % arenas.length);
+        MemorySegment segment = arenas[index].borrowFreeObject();
+
+        // The segments returned by the other threads may be left in the
+        // shared stacks of the sibling arenas, take them before creating
+        // a new one. Only a few are probed to keep the miss cheap.
+        int nProbes = Math.min(arenas.length - 1, MAX_SIBLING_PROBES);
+        for (int i = 1; segment == null && i <= nProbes; i ++) {
+        	segment = arenas[(index + i) % arenas.length].borrowSharedObject();
+        }
+        if (segment == null) {
+        	segment = arenas[index].borrowObject();
+        }
+
+        if (segment == null) {
+        	classes.exhaustedByClass.incrementAndGet(sizeClass);
+        	if (Debug.isEnabled()) {
+        		Debug.debug("No segment of " +
+        				(1 << (sizeClass + MIN_CLASS_SHIFT)) + " bytes");
+        	}
+        }
+
+        return segment;
     }
 
 	/**
 	 * Return <code>MemorySegment</code> to the pool.
-	 * 
+	 *
 	 * @param segment  The <code>MemorySegment</code> object
 	 * @param type     Type of the segment
 	 */
 	public void returnMemorySegment(MemorySegment segment, Type type) {
-        SegmentPool segPool = segmentsBySize.get(type);
-        if (segPool == null) {
-            throw new NullPointerException("Type '" + type + "' not found");
-        } else {
-            segPool.returnObject(segment);
-        }
+		returnMemorySegment(segment);
     }
 
+	/**
+	 * Return <code>MemorySegment</code> to the pool which creates it.
+	 *
+	 * @param segment  The <code>MemorySegment</code> object
+	 */
+	public void returnMemorySegment(MemorySegment segment) {
+		if (segment == null || segment.getPool() == null) {
+			return;
+		}
+
+		// Only the owner thread borrows from the magazine of an arena
+		SegmentPool pool = segment.getPool();
+		pool.returnObject(segment, pool.isHomeArena());
+	}
+
+	/**
+	 * Delete the free segments above the reserved count, it is called
+	 * once in a while to give back the memory used by a peak.
+	 *
+	 * @return  how many bytes are freed
+	 */
+	public long trim() {
+		return heapClasses.trim() + directClasses.trim();
+	}
+
+	/**
+	 * @return  bytes of all the segments created and not deleted
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return  how many times no segment could be given
+	 */
+	public long getExhaustedCount() {
+		return heapClasses.getExhaustedCount() + 
+			directClasses.getExhaustedCount();
+	}
+
+	/**
+	 * @param type  @see {@link Type}
+	 * @return  how many times no segment could be given for the size
+	 *          class of the type
+	 */
+	public long getExhaustedCount(Type type) {
+		int sizeClass = getSizeClass(getSize(type));
+		return sizeClass < 0 ? 0 : 
+			getSizeClasses(isDirect(type)).exhaustedByClass.get(sizeClass);
+	}
+
+	private List<SegmentPool> getAllArenas() {
+		List<SegmentPool> list = new ArrayList<SegmentPool>();
+		heapClasses.addArenasTo(list);
+		directClasses.addArenasTo(list);
+		return list;
+	}
+
+	public int getFreeCount() {
+		int nTotal = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nTotal += arena.getFreeCount();
+		}
+		return nTotal;
+	}
+
+	public int getInUseCount() {
+		int nTotal = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nTotal += arena.getInUseCount();
+		}
+		return nTotal;
+	}
+
+	public long getCreatedCount() {
+		long nTotal = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nTotal += arena.getCreatedCount();
+		}
+		return nTotal;
+	}
+
+	public int getLeakCount() {
+		int nTotal = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nTotal += arena.getLeakCount();
+		}
+		return nTotal;
+	}
+
+	public OccupancyHistogram getOccupancyHistogram() {
+		return occupancyHistogram;
+	}
+
+	/**
+	 * The occupancy of all the arenas together is sampled.
+	 */
+	public void sampleOccupancy() {
+		int nInUse = 0;
+		int nCreated = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nInUse += arena.getInUseCount();
+			nCreated += arena.getObjectCount();
+		}
+		occupancyHistogram.addSample(nInUse, nCreated);
+	}
+
+	public int checkLeaks() {
+		int nTotal = 0;
+		for (SegmentPool arena : getAllArenas()) {
+			nTotal += arena.checkLeaks();
+		}
+		return nTotal;
+	}
+
+	private SizeClasses getSizeClasses(boolean isDirect) {
+		return isDirect ? directClasses : heapClasses;
+	}
+
+	/**
+	 * Get the index of smallest size class holding the given size.
+	 * @param nSize  the size
+	 * @return  the index, or -1 if it is larger than the largest class
+	 */
+	private static int getSizeClass(int nSize) {
+		if (nSize > (1 << MAX_CLASS_SHIFT)) {
+			return -1;
+		}
+		if (nSize <= (1 << MIN_CLASS_SHIFT)) {
+			return 0;
+		}
+
+		// Bits to hold nSize - 1, so a power of two is in its own class
+		int shift = 32 - Integer.numberOfLeadingZeros(nSize - 1);
+		return shift - MIN_CLASS_SHIFT;
+	}
+
     public void release() {
-        this.segmentsBySize.clear();
+    	heapClasses.release();
+    	directClasses.release();
+        this.sizeByType.clear();
+        this.directByType.clear();
+        this.allocatedBytes.set(0);
     }
 }
@@ -1,9 +1,5 @@
 package org.push.protocol;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-
 /**
  * This class provides a skeletal implementation of the connection 
  * between the server and client so it could be used both on client 
@@ -15,11 +11,13 @@ import java.util.Map.Entry;
 public abstract class Connection {
 
 	private boolean isConnectionInitialized;
-    private Map<Protocol, ProtocolContext> protocolContextMap;
+	
+	// The contexts by the layer index of the protocols
+    private ProtocolContext[] protocolContexts;
 
     public Connection() {
         isConnectionInitialized = false;
-        protocolContextMap = new HashMap<Protocol, ProtocolContext>();
+        protocolContexts = new ProtocolContext[0];
     }
 
     /**
@@ -31,6 +29,11 @@ public abstract class Connection {
      */
     public boolean setUpProtocolContexts() {
 		Protocol protocol = getProtocol();
+		
+		int nLayers = protocol.getLowestProtocol().getLayerIndex() + 1;
+		if (protocolContexts.length < nLayers) {
+			protocolContexts = new ProtocolContext[nLayers];
+		}
 
 		ProtocolContext context;
 		while (protocol != null) {
@@ -39,7 +42,8 @@ public abstract class Connection {
 				return false;
 			}
 
-            protocolContextMap.put(protocol, context);
+            context.setConnection(this);
+            protocolContexts[protocol.getLayerIndex()] = context;
 
             // Move to next protocol
 			protocol = protocol.getLowerProtocol();
@@ -55,7 +59,56 @@ public abstract class Connection {
      * @return  The <code>ProtocolContext</code> associated or null
      */
     public ProtocolContext getProtocolContext(Protocol protocol) {
-        return protocolContextMap.get(protocol);
+    	int index = protocol.getLayerIndex();
+    	if (index >= protocolContexts.length) {
+    		return null;
+    	}
+    	
+    	ProtocolContext context = protocolContexts[index];
+    	if (context == null || context.getProtocol() != protocol) {
+    		return null;
+    	}
+        return context;
+    }
+
+    /**
+     * Give back the memory of the idle buffers of all the 
+     * <code>ProtocolContext</code>, @see 
+     * {@link ProtocolContext#releaseIdleBuffers()}
+     */
+    public void releaseIdleBuffers() {
+        for (ProtocolContext context : protocolContexts) {
+        	if (context != null) {
+        		context.releaseIdleBuffers();
+        	}
+        }
+    }
+
+    /**
+     * Whether any <code>ProtocolContext</code> keeps the connection from
+     * being read, @see {@link ProtocolContext#suspendRead()}.
+     * 
+     * @return  true if the connection should not be armed to read
+     */
+    public boolean suspendRead() {
+        for (ProtocolContext context : protocolContexts) {
+        	if (context != null && context.suspendRead()) {
+        		return true;
+        	}
+        }
+        return false;
+    }
+
+    /**
+     * Decode the received data again in a worker. A protocol which 
+     * suspended the read to wait for something other than the network,
+     * like a task run by another thread, calls it once when it could 
+     * go on.
+     * 
+     * @return  false if it is not supported or could not be done
+     */
+    public boolean resumeRead() {
+    	return false;
     }
 
     /**
@@ -120,18 +173,18 @@ public abstract class Connection {
     public void recycle() {
 		isConnectionInitialized = false;
 
-        Protocol protocol;
         ProtocolContext context;
-		for (Entry<Protocol, ProtocolContext> entry : 
-                protocolContextMap.entrySet()) {
-			protocol = entry.getKey();
-			context = entry.getValue();
+		for (int i = 0; i < protocolContexts.length; i ++) {
+			context = protocolContexts[i];
+			if (context == null) {
+				continue;
+			}
 
 			// Release the protocol context
-			protocol.returnObject(context);
+			context.setConnection(null);
+			context.getProtocol().returnObject(context);
+			protocolContexts[i] = null;
 		}
-
-		protocolContextMap.clear();
     }
 
     /**
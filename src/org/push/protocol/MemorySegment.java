@@ -1,10 +1,15 @@
 package org.push.protocol;
 
+import java.nio.ByteBuffer;
+
 import org.push.util.Utils;
 
 /**
  * This class represents a piece of memory space.
  * Usually the object is reused by some object pool
+ * 
+ * The memory is either a byte array on the heap or a direct 
+ * <code>ByteBuffer</code> off the heap, @see {@link #isDirect()}
  * @see {@link SegmentPool}
  * 
  * @author Lei Wang
@@ -13,16 +18,51 @@ import org.push.util.Utils;
 public class MemorySegment {
 
     private byte[] data;
+    private ByteBuffer directData;
 	private int size;
+	
+	// The pool which creates this segment, null if not from a pool
+	private SegmentPool pool;
     
     public MemorySegment(int size) {
+        this(size, null);
+    }
+    
+    public MemorySegment(int size, SegmentPool pool) {
         Utils.unsignedIntArgCheck(size, "size");
         
         data = new byte[size];
         this.size = size;
+        this.pool = pool;
+    }
+    
+    /**
+     * Create a segment off the heap.
+     * 
+     * @param directData  the memory, its capacity is the size of segment
+     * @param pool        the pool which creates this segment
+     */
+    public MemorySegment(ByteBuffer directData, SegmentPool pool) {
+        Utils.nullArgCheck(directData, "directData");
+        
+        this.directData = directData;
+        this.size = directData.capacity();
+        this.pool = pool;
     }
     
+    /**
+     * @return  the memory on the heap, or null if it is off the heap
+     */
     public byte[] getData() { return this.data; }
     
+    /**
+     * @return  the memory off the heap, or null if it is on the heap
+     */
+    public ByteBuffer getDirectData() { return this.directData; }
+    
+    public boolean isDirect() { return this.directData != null; }
+    
     public int getSize() { return this.size; }
+    
+    public SegmentPool getPool() { return this.pool; }
 }
@@ -0,0 +1,52 @@
+package org.push.protocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count how many times the occupancy of a pool is sampled within each
+ * range. The occupancy is the ratio of the objects in use to all the
+ * objects created, split into ten ranges of 10% each, the last one
+ * also holds 100%.
+ * 
+ * @author Lei Wang
+ */
+
+public class OccupancyHistogram {
+
+	private static final int BUCKETS = 10;
+
+	private AtomicLongArray counts;
+
+	public OccupancyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	}
+
+	/**
+	 * Add a sample of the occupancy.
+	 * 
+	 * @param nInUse    how many objects are in use
+	 * @param nCreated  how many objects are created
+	 */
+	public void addSample(int nInUse, int nCreated) {
+		if (nCreated <= 0) {
+			counts.incrementAndGet(0);
+			return;
+		}
+
+		int bucket = (int) ((long) nInUse * BUCKETS / nCreated);
+		counts.incrementAndGet(Math.max(0, Math.min(bucket, BUCKETS - 1)));
+	}
+
+	/**
+	 * Get the counts and clear them for the next period.
+	 * 
+	 * @return  the count of each range, from the lowest occupancy
+	 */
+	public long[] collectAndReset() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i ++) {
+			result[i] = counts.getAndSet(i, 0);
+		}
+		return result;
+	}
+}
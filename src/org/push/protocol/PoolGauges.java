@@ -0,0 +1,55 @@
+package org.push.protocol;
+
+/**
+ * The gauges of an object pool, they are sampled by the server and
+ * exported with the other measures.
+ * 
+ * @author Lei Wang
+ */
+
+public interface PoolGauges {
+
+	/**
+	 * @return  how many free objects are ready to be borrowed
+	 */
+	public int getFreeCount();
+
+	/**
+	 * @return  how many objects are borrowed and not returned
+	 */
+	public int getInUseCount();
+
+	/**
+	 * @return  how many objects are created since the pool starts
+	 */
+	public long getCreatedCount();
+
+	/**
+	 * @return  how many times no object could be borrowed
+	 */
+	public long getExhaustedCount();
+
+	/**
+	 * @return  how many sampled objects are not returned in time, 
+	 *          found by the last leak check
+	 */
+	public int getLeakCount();
+
+	/**
+	 * @return  the histogram of the occupancy of the pool
+	 */
+	public OccupancyHistogram getOccupancyHistogram();
+
+	/**
+	 * Sample the occupancy into the histogram, it is called once in a
+	 * while.
+	 */
+	public void sampleOccupancy();
+
+	/**
+	 * Report the sampled objects which are not returned in time.
+	 * 
+	 * @return  how many objects are not returned in time
+	 */
+	public int checkLeaks();
+}
@@ -14,6 +14,10 @@ import org.push.util.Utils;
  * 
  * It is also a pool of <code>ProtocolContext</code>
  * 
+ * Each protocol has a layer index in its list, 0 for the highest one
+ * and increased by one for each lower layer. The connections keep the
+ * contexts of the protocols in an array by this index.
+ * 
  * @author Lei Wang
  */
 
@@ -21,22 +25,35 @@ public abstract class Protocol extends AbstractPool<ProtocolContext> {
 
     private Protocol upperProtocol;
     private Protocol lowerProtocol;
+    private int layerIndex;
 
     public Protocol() {
 		upperProtocol = null;
 		lowerProtocol = null;
+		layerIndex = 0;
     }
     
     /**
-     * Add the protocol as the lower layer of current protocol
+     * Add the protocol as the lower layer of current protocol, the 
+     * layer indexes of it and its lower protocols are updated.
      * 
      * @param protocol   the protocol to add
      */
     public void addLowerProtocolLayer(Protocol protocol) {
 		lowerProtocol = protocol;
 		protocol.upperProtocol = this;
+		
+		for (Protocol lower = protocol; lower != null; 
+				lower = lower.lowerProtocol) {
+			lower.layerIndex = lower.upperProtocol.layerIndex + 1;
+		}
     }
     
+    /**
+     * @return  the index of this layer, 0 for the highest protocol
+     */
+    public int getLayerIndex() { return layerIndex; }
+    
     public ProtocolContext createNewProtocolContext() {
 		return new ProtocolContext();
     }
@@ -47,6 +64,92 @@ public abstract class Protocol extends AbstractPool<ProtocolContext> {
 		return maxInputSize;
     }
 
+	/**
+	 * Whether the output of {@link #encodeContent} depends only on its 
+	 * input but not on the context of the connection. If so, the bytes
+	 * encoded for a broadcast packet could be shared by all the 
+	 * connections using this protocol.
+	 * 
+	 * @return  false by default
+	 */
+	public boolean isEncodingShareable() {
+		return false;
+	}
+
+	/**
+	 * @see #isEncodingShareable()
+	 * @return  true if this and all the lower protocols are shareable
+	 */
+	public boolean isStackEncodingShareable() {
+		for (Protocol protocol = this; protocol != null; 
+				protocol = protocol.getLowerProtocol()) {
+			if (!protocol.isEncodingShareable()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Whether this protocol could encode in place by 
+	 * {@link #encodeInPlace}. If all the protocols of a list support
+	 * it, a message is serialized and encoded in one buffer without 
+	 * any copy.
+	 * 
+	 * @return  false by default
+	 */
+	public boolean isInPlaceEncodingSupported() {
+		return false;
+	}
+
+	/**
+	 * @return  how many bytes are written before the content by 
+	 *          {@link #encodeInPlace}
+	 */
+	public int getHeaderSize() {
+		return 0;
+	}
+
+	/**
+	 * @return  how many bytes are written after the content by 
+	 *          {@link #encodeInPlace}
+	 */
+	public int getTrailerSize() {
+		return 0;
+	}
+
+	/**
+	 * Encode the content in place. There are {@link #getHeaderSize()}
+	 * bytes reserved before the content to write the header, and the 
+	 * content is at the end of the buffer so the trailer is appended.
+	 * 
+	 * @param context       the context of the connection
+	 * @param buffer        the buffer holding the content
+	 * @param headerOffset  where the header starts in the data of buffer
+	 * @param contentSize   size of the content after the header
+	 * @return  the result
+	 */
+	public EncodeResult encodeInPlace(ProtocolContext context, 
+			Buffer buffer, int headerOffset, int contentSize) {
+		return EncodeResult.Failure;
+	}
+
+	/**
+	 * @see #isInPlaceEncodingSupported()
+	 * @return  true if this and all the lower protocols support it
+	 */
+	public boolean isStackInPlaceEncodingSupported() {
+		for (Protocol protocol = this; protocol != null; 
+				protocol = protocol.getLowerProtocol()) {
+			if (!protocol.isInPlaceEncodingSupported()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+
 	public int getRequiredRecyclableBuffers(int nMaxConnections, 
             int nMaxConcurrentCalls) {
 		return 0;
@@ -71,7 +174,9 @@ public abstract class Protocol extends AbstractPool<ProtocolContext> {
 
     @Override
     protected ProtocolContext createImpl() {
-		return createNewProtocolContext();
+		ProtocolContext context = createNewProtocolContext();
+		context.setProtocol(this);
+		return context;
     }
 
     @Override
@@ -7,15 +7,25 @@ import org.push.protocol.ErrorCodes.ContextStates;
  * It will save the data with the format defined by the protocol
  * and the state to indicate if it is initialized. 
  * 
+ * The buffer of the data borrows its memory only when some data is 
+ * kept, @see {@link #releaseIdleBuffers()}.
+ * 
  * @author Lei Wang
  */
 public class ProtocolContext {
 
 	private RecyclableBuffer receivedData;
 	private short state;
+	
+	// The protocol which creates this context
+	private Protocol protocol;
+	
+	// The connection using this context, null when it is in the pool
+	private volatile Connection connection;
     
 	public ProtocolContext() {
-        this.receivedData = new RecyclableBuffer(RecyclableBuffer.Type.Double);
+        this.receivedData = new RecyclableBuffer(RecyclableBuffer.Type.Double,
+        		true);
         this.state = 0;
     }
 	
@@ -28,6 +38,47 @@ public class ProtocolContext {
 		return receivedData;
     }
 
+	public Protocol getProtocol() {
+		return protocol;
+	}
+	
+	void setProtocol(Protocol protocol) {
+		this.protocol = protocol;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+	
+	void setConnection(Connection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Called by the worker when all the received data is decoded, 
+	 * before the connection is armed to read again. A context waiting
+	 * for something other than the network, like a task run by another
+	 * thread, returns true to keep the connection from being read until
+	 * it calls {@link #resumeRead()}.
+	 * 
+	 * @return  true if the read is suspended, false by default
+	 */
+	public boolean suspendRead() {
+		return false;
+	}
+	
+	/**
+	 * Ask the connection to decode its received data again, @see 
+	 * {@link Connection#resumeRead()}.
+	 * 
+	 * @return  false if the context is not used by any connection or
+	 *          the read could not be resumed
+	 */
+	public boolean resumeRead() {
+		Connection current = connection;
+		return current != null && current.resumeRead();
+	}
+
 	public boolean isInitialized() {
 		return (state & ContextStates.InitEnded.value()) != 0;
     }
@@ -44,11 +95,21 @@ public class ProtocolContext {
         state |= ContextStates.InitStarted.value();
     }
 	
+	/**
+	 * Give back the memory of the buffers which have no data, it is 
+	 * called when the connection becomes idle. The subclasses keeping
+	 * more buffers should override it to release them too.
+	 */
+	public void releaseIdleBuffers() {
+		receivedData.releaseIfEmpty();
+	}
+	
 	/**
 	 * Clear the saved state of the protocol
 	 */
 	public void recycleIntern() {
 		receivedData.clearBytes();
+		receivedData.releaseIfEmpty();
 		state = 0;
 		recycle();
 	}
@@ -25,6 +25,12 @@ public class ProtocolManager {
         
 		MessageFactory msgFactory = connection.getMessageFactory();
 
+		Protocol protocol = serializeData.getProtocol();
+		if (protocol != null && protocol.isStackInPlaceEncodingSupported()) {
+			return serializeInPlace(connection, outgoingMsg, outputBuffer, 
+					protocol);
+		}
+
 		// First encode the message:
 		RecyclableBuffer packetBuffer = new RecyclableBuffer();
 		SerializeResult ret = msgFactory.serializeMessage(outgoingMsg, 
@@ -42,6 +48,58 @@ public class ProtocolManager {
         return ret2;
     }
 
+    /**
+     * Serialize the message after the space reserved for the headers of
+     * all the protocols, then each protocol writes its header and 
+     * appends its trailer around the bytes of the upper protocol, from
+     * the highest one to the lowest one. The message is not copied at 
+     * all. If it fails, the output buffer is restored.
+     */
+    private NetworkSerializeResult serializeInPlace(Connection connection,
+    		OutgoingPacket outgoingMsg, Buffer outputBuffer, 
+    		Protocol highestProtocol) {
+    	int nStart = outputBuffer.getDataSize();
+    	
+    	int nHeadersSize = 0;
+    	Protocol protocol;
+    	for (protocol = highestProtocol; protocol != null; 
+    			protocol = protocol.getLowerProtocol()) {
+    		nHeadersSize += protocol.getHeaderSize();
+    	}
+    	
+    	if (!outputBuffer.appendSpace(nHeadersSize)) {
+    		return NetworkSerializeResult.Retry;
+    	}
+    	
+    	SerializeResult ret = connection.getMessageFactory().serializeMessage(
+    			outgoingMsg, outputBuffer);
+    	if (ret != SerializeResult.Success) {
+    		outputBuffer.truncate(nStart);
+    		return NetworkSerializeResult.convertSerializeFailure(ret);
+    	}
+    	
+    	int nHeaderOffset = nStart + nHeadersSize;
+    	int nContentSize = outputBuffer.getDataSize() - nHeaderOffset;
+    	EncodeResult encodeResult;
+    	for (protocol = highestProtocol; protocol != null; 
+    			protocol = protocol.getLowerProtocol()) {
+    		nHeaderOffset -= protocol.getHeaderSize();
+    		encodeResult = protocol.encodeInPlace(
+    				connection.getProtocolContext(protocol), outputBuffer, 
+    				nHeaderOffset, nContentSize);
+    		if (encodeResult != EncodeResult.Success) {
+    			outputBuffer.truncate(nStart);
+    			return NetworkSerializeResult.convertEncodingFailure(
+    					encodeResult);
+    		}
+    		
+    		// The whole frame is the content of the lower protocol
+    		nContentSize = outputBuffer.getDataSize() - nHeaderOffset;
+    	}
+    	
+    	return NetworkSerializeResult.Success;
+    }
+
     public NetworkSerializeResult serializeOutgoinBytes(
             Connection connection, Buffer outgoingBytes, 
             Buffer outputBuffer, SerializeData serializeData) {
@@ -59,6 +117,9 @@ public class ProtocolManager {
 		Buffer output = tmpBuffer;
         Buffer tmpForSwap; 
         EncodeResult encodeResult;
+        // Whether a protocol keeping the state across the messages has
+        // encoded, then the message could not be retried any more
+        boolean isStateChanged = false;
 		while (protocol != null) {
 			encodeResult = protocol.encodeContent(
                     connection.getProtocolContext(protocol), input, output);
@@ -69,7 +130,8 @@ public class ProtocolManager {
                 tmpBuffer.release();
 
 				if (encodeResult == EncodeResult.InsufficientBufferSpace 
-                            && (protocol.getLowerProtocol() != null)) {
+                            && (protocol.getLowerProtocol() != null || 
+                            		isStateChanged)) {
 
                     // Buffer overflow at an intermediate protocol 
                     // layer is not allowable.
@@ -80,6 +142,10 @@ public class ProtocolManager {
                         encodeResult);
 			}
 
+            if (!protocol.isEncodingShareable()) {
+            	isStateChanged = true;
+            }
+
             /* Use output as input for next protocol */
 			tmpForSwap = input;
 			input = output;
@@ -90,20 +156,46 @@ public class ProtocolManager {
 			protocol = protocol.getLowerProtocol();
 		}
         
-        // Save the output into the buffer
-        outputBuffer.append(tmpBuffer);
+        // Save the output into the buffer, after the last swap the
+        // encoded bytes are in input
+        boolean isAppended = outputBuffer.append(input);
         
         // Release the buffer
         tmpBuffer.release();
 
-		return NetworkSerializeResult.Success;
+		if (isAppended) {
+			return NetworkSerializeResult.Success;
+		}
+		return isStateChanged ? NetworkSerializeResult.Failure : 
+                NetworkSerializeResult.Retry;
     }
 
     public NetworkDeserializeResult tryDeserializeIncomingPacket(
             Connection connection, DeserializeData deserializeData) {
+		RecyclableBuffer tmpOutputBuffer = new RecyclableBuffer();
+		NetworkDeserializeResult result = tryDeserializeIncomingPacket(
+				connection, deserializeData, tmpOutputBuffer);
+		tmpOutputBuffer.release();
+		
+		return result;
+    }
+
+    /**
+     * De-serialize a packet from the data received by the connection.
+     * 
+     * @param connection       the connection
+     * @param deserializeData  to store the result
+     * @param tmpOutputBuffer  a scratch buffer for the output of the 
+     *                         intermediate protocol layers, it is 
+     *                         provided by the caller so it could be reused
+     * @return  the result
+     */
+    public NetworkDeserializeResult tryDeserializeIncomingPacket(
+            Connection connection, DeserializeData deserializeData, 
+            Buffer tmpOutputBuffer) {
         
 		MessageFactory msgFactory = connection.getMessageFactory();
-		RecyclableBuffer tmpOutputBuffer = new RecyclableBuffer();
+		tmpOutputBuffer.clearBytes();
 		
         Protocol currentProtocol;
         Protocol upperProtocol;
@@ -140,7 +232,6 @@ public class ProtocolManager {
 					deserializeData.setProtocol(upperProtocol);
 					continue;
 				} else {
-					tmpOutputBuffer.release();
 					return NetworkDeserializeResult.WantMoreData;
 				}				
 			} else if (decodeResult == DecodeResult.NoContent) {
@@ -149,7 +240,6 @@ public class ProtocolManager {
 				if (upperProtocol != null) {
 					deserializeData.getProtocolBytes().append(tmpOutputBuffer);
 				}
-				tmpOutputBuffer.release();
 				
 				//
 				return NetworkDeserializeResult.ProtocolBytes;
@@ -157,7 +247,6 @@ public class ProtocolManager {
 				if (upperProtocol != null) {
 					deserializeData.getProtocolBytes().append(tmpOutputBuffer);
 				}
-				tmpOutputBuffer.release();
 
 				return NetworkDeserializeResult.Close;
 			} else if (decodeResult == DecodeResult.Content) {
@@ -174,10 +263,8 @@ public class ProtocolManager {
 					if (deserializeResult == DeserializeResult.DiscardContent) {
 						continue;
 					} else if (deserializeResult == DeserializeResult.Failure) {
-						tmpOutputBuffer.release();
 						return NetworkDeserializeResult.Failure;
 					} else if(deserializeResult == DeserializeResult.Success) {
-						tmpOutputBuffer.release();
 						return NetworkDeserializeResult.Content;
 					} else {
 						//Should not come here.
@@ -187,11 +274,10 @@ public class ProtocolManager {
 				//Give content data to upper protocol:
 				if (!upperProtocol.readData(connection.getProtocolContext(
                         upperProtocol), outputBuffer)) {
-					tmpOutputBuffer.release();
 					return NetworkDeserializeResult.Failure;
 				}
+				outputBuffer.clearBytes();
 			} else { //decodeResult == DecodeResult::Failure
-				tmpOutputBuffer.release();
 				return NetworkDeserializeResult.Failure; //
 			}
 		}
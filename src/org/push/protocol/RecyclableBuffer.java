@@ -8,6 +8,10 @@ import org.push.util.Utils;
  * The memory space of this buffer is from buffer pool.
  * So it is called "Recyclable"
  * 
+ * A lazy buffer borrows the memory only when the first bytes are
+ * appended, and gives it back by {@link #releaseIfEmpty()}, so an idle
+ * owner does not hold any memory.
+ * 
  * @author Lei Wang
  */
 
@@ -37,15 +41,55 @@ public class RecyclableBuffer extends Buffer {
 
 	protected Type type;
 	protected MemorySegment segment;
+	private boolean isLazy;
 
 	public RecyclableBuffer() {
         this(Type.Single);
     }
 
 	public RecyclableBuffer(Type type) {
+        this(type, false);
+    }
+
+	/**
+	 * @param type    @see <code>Type</code>
+	 * @param isLazy  true to allocate the memory on the first append
+	 */
+	public RecyclableBuffer(Type type, boolean isLazy) {
         Utils.nullArgCheck(type, "type");
-		doAllocate(type);
+        this.isLazy = isLazy;
+        if (isLazy) {
+        	this.type = type;
+        } else {
+        	doAllocate(type);
+        }
     }
+
+	/**
+	 * Give the memory back to the pool if there is no data, only for a 
+	 * lazy buffer. The memory is borrowed again on next append.
+	 * 
+	 * @return  true if the memory is given back
+	 */
+	public boolean releaseIfEmpty() {
+		if (!isLazy || getCapacity() == 0 || !isEmpty()) {
+			return false;
+		}
+		
+		release();
+		assign((byte[]) null, 0, 0);
+		return true;
+	}
+
+	@Override
+	protected boolean reserve(int size) {
+		if (!isLazy || getCapacity() != 0 || type == Type.UnAllocated) {
+			return false;
+		}
+		
+		doAllocate();
+		return getRemainingSize() >= size;
+	}
     
     @Override
     public void release() {
@@ -58,10 +102,12 @@ public class RecyclableBuffer extends Buffer {
     
     /**
      * Sometimes, it will fail to borrow a segment from the pool
-     * so here it requires to allocate a space by itself.
+     * so here it requires to allocate a space by itself, as large
+     * as the segment of the type.
      */
     private void allocateWhenNoSegment() {
-    	assign(new byte[1024]);
+    	int nSize = BufferPool.getDefaultPool().getSize(type);
+    	assign(new byte[nSize > 0 ? nSize : 1024]);
     }
 
     /**
@@ -77,7 +123,11 @@ public class RecyclableBuffer extends Buffer {
 			return;
 		}
 
-		assign(segment.getData());
+		if (segment.isDirect()) {
+			assign(segment.getDirectData(), 0);
+		} else {
+			assign(segment.getData());
+		}
     }
 
 	/**
@@ -4,11 +4,22 @@
  */
 package org.push.protocol;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.push.util.Utils;
 
 /**
  * A pool to store lots of <code>MemorySegment</code> objects
  * 
+ * The memory of the segments could be limited by a budget shared with
+ * the other pools, no segment is created when the budget is used up.
+ * 
+ * The pool could create the segments off the heap. Allocating a direct
+ * <code>ByteBuffer</code> is expensive, so the small segments are cut
+ * from a larger slab. The memory of a slab is freed by the garbage 
+ * collector only after all the segments cut from it are deleted.
+ * 
  * @author Lei Wang
  */
 
@@ -16,20 +27,101 @@ public class SegmentPool extends AbstractPool<MemorySegment> {
     
 	// The size of memory within the MemorySegment
     private int nSize;
+    
+    // Bytes of the segments created by all the pools sharing the budget
+    private AtomicLong allocatedBytes;
+    
+    /* Maximum bytes of allocatedBytes, 0 means no limit */
+    private long nMaxBytes;
+    
+    /* Size of a slab to cut the direct segments */
+    private static final int SLAB_SIZE = 1 << 20;
+    
+    /* Whether the segments are off the heap */
+    private boolean isDirect;
+    
+    // The slab being cut, guarded by this
+    private ByteBuffer slab;
+    
+    /* Index of this pool among the arenas of its size class, the threads
+     * whose id modulo nArenas is nArenaIndex borrow from it */
+    private int nArenaIndex = 0;
+    private int nArenas = 1;
 
 	public SegmentPool(int nSize) {
+        this(nSize, new AtomicLong(0), 0);
+    }
+
+	public SegmentPool(int nSize, AtomicLong allocatedBytes, long nMaxBytes) {
+        this(nSize, allocatedBytes, nMaxBytes, false);
+    }
+
+	public SegmentPool(int nSize, AtomicLong allocatedBytes, long nMaxBytes,
+			boolean isDirect) {
         Utils.unsignedIntArgCheck(nSize, "nSize");
+        Utils.nullArgCheck(allocatedBytes, "allocatedBytes");
         this.nSize = nSize;
+        this.allocatedBytes = allocatedBytes;
+        this.nMaxBytes = nMaxBytes;
+        this.isDirect = isDirect;
     }
+	
+	public int getSegmentSize() { return nSize; }
+	
+	public boolean isDirect() { return isDirect; }
+	
+	/**
+	 * Declare this pool as one of the arenas of a size class.
+	 * @param nArenaIndex  index of this pool among the arenas
+	 * @param nArenas      count of the arenas
+	 */
+	public void setArena(int nArenaIndex, int nArenas) {
+		if (nArenaIndex < 0 || nArenaIndex >= nArenas) {
+			throw new IllegalArgumentException("nArenaIndex is out of range");
+		}
+		this.nArenaIndex = nArenaIndex;
+		this.nArenas = nArenas;
+	}
+	
+	/**
+	 * @return  true if current thread borrows from this pool first
+	 */
+	public boolean isHomeArena() {
+		return Thread.currentThread().getId() % nArenas == nArenaIndex;
+	}
 
     @Override
     protected void deleteImpl(MemorySegment seg) {
-    	// Nothing will be done.
+    	allocatedBytes.addAndGet(-nSize);
     }
 
     @Override
     protected MemorySegment createImpl() {
-        return new MemorySegment(nSize);
+    	long nBytes = allocatedBytes.addAndGet(nSize);
+    	if (nMaxBytes > 0 && nBytes > nMaxBytes) {
+    		allocatedBytes.addAndGet(-nSize);
+    		return null;
+    	}
+    	if (isDirect) {
+    		return new MemorySegment(allocateDirect(), this);
+    	}
+        return new MemorySegment(nSize, this);
+    }
+    
+    private synchronized ByteBuffer allocateDirect() {
+    	if (nSize >= SLAB_SIZE / 2) {
+    		return ByteBuffer.allocateDirect(nSize);
+    	}
+    	
+    	if (slab == null || slab.remaining() < nSize) {
+    		slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+    	}
+    	
+    	slab.limit(slab.position() + nSize);
+    	ByteBuffer directData = slab.slice();
+    	slab.position(slab.limit());
+    	slab.limit(slab.capacity());
+    	return directData;
     }
 
     @Override
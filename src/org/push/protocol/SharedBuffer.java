@@ -0,0 +1,57 @@
+package org.push.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A <code>RecyclableBuffer</code> shared by several owners, for example
+ * the encoded bytes of a broadcast packet queued by many connections.
+ * 
+ * The creator holds the first reference, each other owner must call
+ * {@link #retain()} before using it. The memory space goes back to the
+ * pool when the last owner calls {@link #release()}. The data must not 
+ * be modified once it is shared.
+ * 
+ * @author Lei Wang
+ */
+
+public class SharedBuffer extends RecyclableBuffer {
+	
+	private AtomicInteger refCount;
+
+	public SharedBuffer(Type type) {
+		super(type);
+		refCount = new AtomicInteger(1);
+	}
+	
+	/**
+	 * Add a reference of this buffer.
+	 */
+	public void retain() {
+		refCount.incrementAndGet();
+	}
+
+	/**
+	 * Remove a reference of this buffer, the memory space is returned
+	 * to the pool when there is no reference.
+	 */
+	@Override
+	public void release() {
+		if (refCount.decrementAndGet() == 0) {
+			super.release();
+		}
+	}
+
+	/**
+	 * Create a view of the data for an owner, unlike 
+	 * {@link #getDataView()} each view has its own position so it 
+	 * could be used concurrently with the others.
+	 * 
+	 * @return  a new view of the data
+	 */
+	public ByteBuffer newDataView() {
+		ByteBuffer view = createView();
+		view.limit(offset + size).position(offset);
+		return view.slice();
+	}
+}
@@ -12,6 +12,16 @@ package org.push.util;
 public class Debug {
 	private static boolean isDebug = true;
 
+	/**
+	 * Check it before building the debug information on the hot paths,
+	 * so no string is built when it is not printed.
+	 * 
+	 * @return  true if the debug information is printed
+	 */
+	public static boolean isEnabled() {
+		return isDebug;
+	}
+
 	public static void debug(String info) {
 		if (isDebug) {
 			System.out.println(info);
@@ -38,6 +38,6 @@ public final class Ptr<T> {
      * @return true if not points to NULL
      */
     public boolean notNull() {
-        return this.value == null;
+        return this.value != null;
     }
 }
@@ -19,6 +19,14 @@ public class StopWatch {
 	    reset();
 	}
 
+	/**
+	 * Start again as if this object is just created
+	 */
+	public void restart() {
+		mStartCounter = System.nanoTime();
+		reset();
+	}
+
 	/**
 	 * Reset for next use
 	 */
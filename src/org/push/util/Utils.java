@@ -5,9 +5,11 @@
 package org.push.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Common utility
@@ -122,6 +124,51 @@ public class Utils {
 		}
 	}
 
+    /**
+     * Run the tasks in parallel, one thread for each task, and wait 
+     * until all of them finish. The last task is run by current thread.
+     * 
+     * @param tasks  the tasks to run
+     * @param name   prefix of the names of the threads
+     * @return  false if any task throws or the waiting is interrupted
+     */
+    public static boolean runInParallel(Runnable[] tasks, String name) {
+    	final AtomicBoolean isFailed = new AtomicBoolean(false);
+    	Thread[] threads = new Thread[tasks.length];
+    	for (int i = 0; i < tasks.length; i ++) {
+    		final Runnable task = tasks[i];
+    		threads[i] = new Thread(name + "-" + i) {
+    			@Override
+    			public void run() {
+    				try {
+    					task.run();
+    				} catch (RuntimeException ex) {
+    					ex.printStackTrace();
+    					isFailed.set(true);
+    				}
+    			}
+    		};
+    	}
+    	
+    	for (int i = 0; i < threads.length - 1; i ++) {
+    		threads[i].start();
+    	}
+    	if (threads.length > 0) {
+    		threads[threads.length - 1].run();
+    	}
+    	
+    	try {
+        	for (int i = 0; i < threads.length - 1; i ++) {
+        		threads[i].join();
+        	}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+    	
+    	return !isFailed.get();
+    }
+
     /**
      * It will check if the value is an unsigned integer.
      * If not, an IllegalArgumentException will be thrown
@@ -158,10 +205,80 @@ public class Utils {
     }
     
     public static String bytesToString(byte[] bytes, int length) {
+    	return bytesToString(bytes, 0, length);
+    }
+    
+    public static String bytesToString(byte[] bytes, int offset, 
+    		int length) {
     	try {
-			return new String(bytes, 0, length, charsetName);
+			return new String(bytes, offset, length, charsetName);
 		} catch (UnsupportedEncodingException e) {
 			return null;
 		}
     }
+    
+    /**
+     * Write the text as UTF-8 from the position of the view, @see 
+     * {@link #putUTF8(ByteBuffer, int, String, int, int)}.
+     */
+    public static int putUTF8(ByteBuffer view, int pos, String text) {
+    	return putUTF8(view, pos, text, 0, text.length());
+    }
+    
+    /**
+     * Write the characters of the text as UTF-8 from the position of the
+     * view, without any temporary array. The lone surrogates are written
+     * as '?' like {@link String#getBytes(String)} does. Call it with a 
+     * null view first to count the bytes.
+     * 
+     * @param view    the view, null to count the bytes only
+     * @param pos     where to write in the view
+     * @param text    the text
+     * @param nStart  index of the first character
+     * @param nEnd    index after the last character
+     * @return  the position after the text
+     */
+    public static int putUTF8(ByteBuffer view, int pos, String text, 
+    		int nStart, int nEnd) {
+    	int c;
+    	for (int i = nStart; i < nEnd; i ++) {
+    		c = text.charAt(i);
+
+    		if (Character.isHighSurrogate((char) c) && i + 1 < nEnd && 
+    				Character.isLowSurrogate(text.charAt(i + 1))) {
+    			c = Character.toCodePoint((char) c, text.charAt(++ i));
+    		} else if (Character.isSurrogate((char) c)) {
+    			c = '?';
+    		}
+
+    		if (c < 0x80) {
+    			if (view != null) {
+    				view.put(pos, (byte) c);
+    			}
+    			pos ++;
+    		} else if (c < 0x800) {
+    			if (view != null) {
+    				view.put(pos, (byte) (0xC0 | (c >> 6)));
+    				view.put(pos + 1, (byte) (0x80 | (c & 0x3F)));
+    			}
+    			pos += 2;
+    		} else if (c < 0x10000) {
+    			if (view != null) {
+    				view.put(pos, (byte) (0xE0 | (c >> 12)));
+    				view.put(pos + 1, (byte) (0x80 | ((c >> 6) & 0x3F)));
+    				view.put(pos + 2, (byte) (0x80 | (c & 0x3F)));
+    			}
+    			pos += 3;
+    		} else {
+    			if (view != null) {
+    				view.put(pos, (byte) (0xF0 | (c >> 18)));
+    				view.put(pos + 1, (byte) (0x80 | ((c >> 12) & 0x3F)));
+    				view.put(pos + 2, (byte) (0x80 | ((c >> 6) & 0x3F)));
+    				view.put(pos + 3, (byte) (0x80 | (c & 0x3F)));
+    			}
+    			pos += 4;
+    		}
+    	}
+    	return pos;
+    }
 }
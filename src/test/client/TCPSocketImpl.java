@@ -225,7 +225,9 @@ public class TCPSocketImpl extends Connection {
 	    int uSize = Math.min(nSocketBufferSize, oBuffer.getDataSize());
 	    
 	    ByteBuffer buffer = ByteBuffer.allocateDirect(uSize);
-	    buffer.put(oBuffer.getBuffer(), 0, oBuffer.getDataSize());
+	    ByteBuffer data = oBuffer.getDataView();
+	    data.limit(data.position() + uSize);
+	    buffer.put(data);
 
 	    buffer.flip();
 	    try {
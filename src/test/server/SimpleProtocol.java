@@ -12,6 +12,46 @@ public class SimpleProtocol extends Protocol {
 	public static final int SignatureStart = 0;
 	public static final int SignatureEnd = 0;
 
+	@Override
+	public boolean isEncodingShareable() {
+		return true;
+	}
+
+	@Override
+	public boolean isInPlaceEncodingSupported() {
+		return true;
+	}
+
+	@Override
+	public int getHeaderSize() {
+		return 4;
+	}
+
+	@Override
+	public int getTrailerSize() {
+		return 2;
+	}
+
+	@Override
+	public EncodeResult encodeInPlace(ProtocolContext context, 
+			Buffer buffer, int headerOffset, int contentSize) {
+		int nTotalSize = 4 + contentSize + 2;
+		if (nTotalSize > 0xFFFF) {
+			return EncodeResult.Failure;
+		}
+		
+		if (!buffer.appendSpace(2)) {
+			return EncodeResult.InsufficientBufferSpace;
+		}
+
+		buffer.put(headerOffset, Utils.intToBytes(SignatureStart, 2), 0, 2);
+		buffer.put(headerOffset + 2, Utils.intToBytes(nTotalSize, 2), 0, 2);
+		buffer.put(headerOffset + nTotalSize - 2, 
+				Utils.intToBytes(SignatureEnd, 2), 0, 2);
+
+		return EncodeResult.Success;
+	}
+
 	@Override
 	public void startSession(ProtocolContext context, Buffer outgoingBytes) {
 		outgoingBytes.clearBytes();
@@ -60,7 +100,7 @@ public class SimpleProtocol extends Protocol {
 		if( sEnd != SignatureEnd )
 			return DecodeResult.Failure;
 
-		outputBuffer.append(inputbuffer.getBuffer(), 4, packetLen - 6);
+		outputBuffer.append(inputbuffer, 4, packetLen - 6);
 
 		inputbuffer.pop(packetLen);//TODO. verify this is correct.
 